@@ -0,0 +1,227 @@
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact length-prefixed binary protocol used between the Proxy and the
+ * Server as an alternative to Java RMI serialization.
+ *
+ * Every frame on the wire is laid out as
+ *   [int length][int requestID][byte code][payload ...]
+ * where length counts every byte after the length field itself. For requests
+ * the code is the opcode of the ServerInterface method being called, for
+ * responses it is one of the STATUS_* values. Request IDs let many calls be
+ * pipelined on one connection and answered out of order. A request payload
+ * starts with the [long traceID] of the operation that made the call, 0 if
+ * none, see Trace.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public final class BinaryProtocol {
+
+	// size of [requestID][code], the part of the header counted in length
+	public static final int HEADER_SIZE = 5;
+	// largest file content one transfer may carry
+	public static final String MAX_CONTENT_SIZE_PROPERTY = "binary.maxContentSize";
+	public static final int MAX_CONTENT_SIZE = Math.min(
+			Integer.getInteger(MAX_CONTENT_SIZE_PROPERTY, 256 * 1024 * 1024), Integer.MAX_VALUE / 2);
+	// upper bound on a single frame: the largest transfer plus room for its
+	// names and fields, so a corrupt length field cannot allocate much more
+	public static final int MAX_FRAME_SIZE = MAX_CONTENT_SIZE + 64 * 1024;
+
+	// request opcodes, one per ServerInterface method
+	public static final byte OP_RETURN_STRING = 1;
+	public static final byte OP_RETURN_INT = 2;
+	public static final byte OP_IS_CLIENT_PROXY = 3;
+	public static final byte OP_REGISTER_PROXY = 4;
+	public static final byte OP_UPDATE_FILE_FROM_PROXY = 5;
+	public static final byte OP_TRANSFER_FILE_TO_PROXY = 6;
+	public static final byte OP_HAS_LATEST_FILE_VERSION = 7;
+	public static final byte OP_OPEN_FILE = 8;
+	public static final byte OP_TRANSFER_FILE_TO_PROXY_ENCODED = 9;
+	public static final byte OP_GET_FILE_VERSION = 10;
+	public static final byte OP_LOCATE_PEER = 11;
+	public static final byte OP_REPORT_CACHED_VERSION = 12;
+	public static final byte OP_DROP_CACHED_VERSION = 13;
+	public static final byte OP_CREATE_FILE = 14;
+	public static final byte OP_UNLINK_FILE = 15;
+	public static final byte OP_TRUNCATE_FILE = 16;
+	public static final byte OP_MIGRATE_FILE_FROM_PROXY = 17;
+
+	// response status codes
+	public static final byte STATUS_OK = 0;
+	public static final byte STATUS_ERROR = 1;
+
+	private BinaryProtocol() {
+	}
+
+	/**
+	 * Growable buffer used to build one outgoing frame. The length prefix is
+	 * reserved up front and filled in by finish().
+	 */
+	public static final class Encoder {
+
+		private ByteBuffer buf;
+
+		public Encoder(int requestID, byte code) {
+			this(requestID, code, 64);
+		}
+
+		public Encoder(int requestID, byte code, int initialCapacity) {
+			buf = ByteBuffer.allocate(Math.max(initialCapacity, 16));
+			buf.putInt(0);
+			buf.putInt(requestID);
+			buf.put(code);
+		}
+
+		private void ensure(int extra) {
+			if (buf.remaining() >= extra) {
+				return;
+			}
+			int newCapacity = Math.max(buf.capacity() * 2, buf.position() + extra);
+			ByteBuffer bigger = ByteBuffer.allocate(newCapacity);
+			buf.flip();
+			bigger.put(buf);
+			buf = bigger;
+		}
+
+		public Encoder putByte(byte b) {
+			ensure(1);
+			buf.put(b);
+			return this;
+		}
+
+		public Encoder putBoolean(boolean b) {
+			return putByte(b ? (byte) 1 : (byte) 0);
+		}
+
+		public Encoder putInt(int i) {
+			ensure(4);
+			buf.putInt(i);
+			return this;
+		}
+
+		public Encoder putLong(long l) {
+			ensure(8);
+			buf.putLong(l);
+			return this;
+		}
+
+		public Encoder putBytes(byte[] bytes) {
+			if (bytes == null) {
+				return putInt(-1);
+			}
+			ensure(4 + bytes.length);
+			buf.putInt(bytes.length);
+			buf.put(bytes);
+			return this;
+		}
+
+		public Encoder putString(String s) {
+			return putBytes(s == null ? null : s.getBytes(StandardCharsets.UTF_8));
+		}
+
+		/**
+		 * Fills in the length prefix and returns the frame ready to be written.
+		 */
+		public ByteBuffer finish() {
+			buf.putInt(0, buf.position() - 4);
+			buf.flip();
+			return buf;
+		}
+	}
+
+	/*
+	 * Decoding helpers, all read from a payload buffer positioned after the header
+	 */
+
+	public static boolean getBoolean(ByteBuffer payload) {
+		return payload.get() != 0;
+	}
+
+	public static byte[] getBytes(ByteBuffer payload) {
+		int len = payload.getInt();
+		if (len < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[len];
+		payload.get(bytes);
+		return bytes;
+	}
+
+	public static String getString(ByteBuffer payload) {
+		byte[] bytes = getBytes(payload);
+		return (bytes == null) ? null : new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public static void putFileTransfer(Encoder enc, FileTransferInfo info) {
+		enc.putString(info.getFileName());
+		enc.putByte((byte) info.getError().ordinal());
+		enc.putString(info.getErrorMessage());
+		enc.putLong(info.getVersion());
+		if (info.hasNoError()) {
+			enc.putInt(info.getFileSize());
+			enc.putByte((byte) info.getCodec().ordinal());
+			enc.putBytes(info.getWireContent());
+		}
+	}
+
+	public static FileTransferInfo getFileTransfer(ByteBuffer payload) {
+		String fname = getString(payload);
+		FileTransferError error = FileTransferError.values()[payload.get()];
+		String errorMsg = getString(payload);
+		long version = payload.getLong();
+		int fileSize = 0;
+		TransferCodec codec = TransferCodec.NONE;
+		byte[] content = null;
+		if (error.equals(FileTransferError.NONE)) {
+			fileSize = payload.getInt();
+			codec = TransferCodec.values()[payload.get()];
+			content = getBytes(payload);
+		}
+		FileTransferInfo info = new FileTransfer(fname, fileSize, codec, content, error, errorMsg);
+		info.setVersion(version);
+		return info;
+	}
+
+	/*
+	 * Channel helpers, used on blocking SocketChannels by both ends
+	 */
+
+	public static void writeFully(SocketChannel channel, ByteBuffer frame) throws IOException {
+		while (frame.hasRemaining()) {
+			channel.write(frame);
+		}
+	}
+
+	/**
+	 * Reads one whole frame from the channel. The returned buffer is
+	 * positioned at the requestID field.
+	 */
+	public static ByteBuffer readFrame(SocketChannel channel, ByteBuffer lengthBuf) throws IOException {
+		lengthBuf.clear();
+		readFully(channel, lengthBuf);
+		lengthBuf.flip();
+		int length = lengthBuf.getInt();
+		if (length < HEADER_SIZE || length > MAX_FRAME_SIZE) {
+			throw new IOException("Bad frame length " + length);
+		}
+		ByteBuffer frame = ByteBuffer.allocate(length);
+		readFully(channel, frame);
+		frame.flip();
+		return frame;
+	}
+
+	private static void readFully(SocketChannel channel, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			if (channel.read(buf) < 0) {
+				throw new EOFException("Connection closed");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,251 @@
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Server side of the binary transport. Accepts one persistent connection per
+ * proxy, reads pipelined request frames from it and runs them on a shared
+ * worker pool, so a slow file transfer does not hold up small calls queued
+ * behind it on the same connection.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class BinaryServerListener implements Runnable {
+
+	private static final int DEFAULT_NUM_WORKERS = Runtime.getRuntime().availableProcessors() * 2;
+
+	private final ServerInterface server;
+	// "server" or "peer", the side named in slow-op log lines
+	private final String side;
+	private final ServerSocketChannel acceptor;
+	private final ExecutorService workers;
+
+	public BinaryServerListener(ServerInterface server, int port) throws IOException {
+		this(server, port, "server");
+	}
+
+	public BinaryServerListener(ServerInterface server, int port, String side) throws IOException {
+		this(server, null, port, side);
+	}
+
+	/**
+	 * Listens on host only, or on every interface if host is null.
+	 */
+	public BinaryServerListener(ServerInterface server, String host, int port, String side) throws IOException {
+		this.server = server;
+		this.side = side;
+		this.acceptor = ServerSocketChannel.open();
+		this.acceptor.bind((host != null) ? new InetSocketAddress(host, port) : new InetSocketAddress(port));
+		this.workers = Executors.newFixedThreadPool(DEFAULT_NUM_WORKERS, r -> {
+			Thread t = new Thread(r, "binary-server-worker");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Port actually bound, useful when constructed with port 0.
+	 */
+	public int getPort() {
+		return acceptor.socket().getLocalPort();
+	}
+
+	/**
+	 * Starts accepting connections on a background thread.
+	 */
+	public void start() {
+		Thread t = new Thread(this, "binary-server-acceptor");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	@Override
+	public void run() {
+		while (acceptor.isOpen()) {
+			try {
+				SocketChannel channel = acceptor.accept();
+				channel.socket().setTcpNoDelay(true);
+				Thread reader = new Thread(() -> serve(channel), "binary-server-conn-" + channel.getRemoteAddress());
+				reader.setDaemon(true);
+				reader.start();
+			} catch (IOException e) {
+				if (acceptor.isOpen()) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private void serve(SocketChannel channel) {
+		ByteBuffer lengthBuf = ByteBuffer.allocate(4);
+		Object writeLock = new Object();
+		try {
+			while (true) {
+				ByteBuffer frame = BinaryProtocol.readFrame(channel, lengthBuf);
+				workers.execute(() -> handle(channel, writeLock, frame));
+			}
+		} catch (IOException e) {
+			// proxy went away
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	private void handle(SocketChannel channel, Object writeLock, ByteBuffer frame) {
+
+		int requestID = frame.getInt();
+		byte opcode = frame.get();
+		long traceID = frame.getLong();
+
+		BinaryProtocol.Encoder response;
+		long result = 0;
+		Trace.begin(side, opName(opcode), null, traceID);
+		try {
+			response = dispatch(requestID, opcode, frame);
+		} catch (RemoteException | RuntimeException e) {
+			response = new BinaryProtocol.Encoder(requestID, BinaryProtocol.STATUS_ERROR)
+					.putString(String.valueOf(e.getMessage()));
+			result = -1;
+		} finally {
+			// the trace covers the call itself, not the write back
+			Trace.finish(result);
+		}
+
+		try {
+			ByteBuffer out = response.finish();
+			if (out.remaining() - 4 > BinaryProtocol.MAX_FRAME_SIZE) {
+				// the proxy would drop the connection on it, answer with an error instead
+				out = new BinaryProtocol.Encoder(requestID, BinaryProtocol.STATUS_ERROR)
+						.putString("Response of " + out.remaining() + " bytes is too large").finish();
+			}
+			synchronized (writeLock) {
+				BinaryProtocol.writeFully(channel, out);
+			}
+		} catch (IOException e) {
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	private BinaryProtocol.Encoder dispatch(int requestID, byte opcode, ByteBuffer args) throws RemoteException {
+
+		BinaryProtocol.Encoder ok = new BinaryProtocol.Encoder(requestID, BinaryProtocol.STATUS_OK);
+
+		switch (opcode) {
+		case BinaryProtocol.OP_RETURN_STRING:
+			return ok.putString(server.returnString());
+		case BinaryProtocol.OP_RETURN_INT:
+			return ok.putInt(server.returnInt());
+		case BinaryProtocol.OP_IS_CLIENT_PROXY:
+			return ok.putBoolean(server.isClientProxy(args.getInt()));
+		case BinaryProtocol.OP_REGISTER_PROXY:
+			return ok.putInt(server.registerProxy());
+		case BinaryProtocol.OP_UPDATE_FILE_FROM_PROXY:
+			return ok.putLong(server.updateFileFromProxy(BinaryProtocol.getFileTransfer(args)));
+		case BinaryProtocol.OP_TRANSFER_FILE_TO_PROXY:
+			return fileTransferResponse(requestID, server.transferFileToProxy(BinaryProtocol.getString(args)));
+		case BinaryProtocol.OP_TRANSFER_FILE_TO_PROXY_ENCODED: {
+			String fname = BinaryProtocol.getString(args);
+			return fileTransferResponse(requestID, server.transferFileToProxy(fname, args.getInt()));
+		}
+		case BinaryProtocol.OP_HAS_LATEST_FILE_VERSION: {
+			int proxyID = args.getInt();
+			return ok.putBoolean(server.hasLatestFileVersion(proxyID, BinaryProtocol.getString(args)));
+		}
+		case BinaryProtocol.OP_OPEN_FILE: {
+			int proxyID = args.getInt();
+			return ok.putInt(server.openFile(proxyID, BinaryProtocol.getString(args)));
+		}
+		case BinaryProtocol.OP_GET_FILE_VERSION:
+			return ok.putLong(server.getFileVersion(BinaryProtocol.getString(args)));
+		case BinaryProtocol.OP_LOCATE_PEER: {
+			String fname = BinaryProtocol.getString(args);
+			long version = args.getLong();
+			return ok.putString(server.locatePeer(fname, version, BinaryProtocol.getString(args)));
+		}
+		case BinaryProtocol.OP_REPORT_CACHED_VERSION: {
+			String peer = BinaryProtocol.getString(args);
+			String fname = BinaryProtocol.getString(args);
+			server.reportCachedVersion(peer, fname, args.getLong());
+			return ok;
+		}
+		case BinaryProtocol.OP_DROP_CACHED_VERSION: {
+			String peer = BinaryProtocol.getString(args);
+			server.dropCachedVersion(peer, BinaryProtocol.getString(args));
+			return ok;
+		}
+		case BinaryProtocol.OP_CREATE_FILE:
+			return ok.putLong(server.createFile(BinaryProtocol.getString(args)));
+		case BinaryProtocol.OP_UNLINK_FILE:
+			return ok.putLong(server.unlinkFile(BinaryProtocol.getString(args)));
+		case BinaryProtocol.OP_TRUNCATE_FILE: {
+			String fname = BinaryProtocol.getString(args);
+			return ok.putLong(server.truncateFile(fname, args.getLong()));
+		}
+		case BinaryProtocol.OP_MIGRATE_FILE_FROM_PROXY:
+			return ok.putLong(server.migrateFileFromProxy(BinaryProtocol.getFileTransfer(args)));
+		default:
+			throw new RemoteException("Unknown opcode " + opcode);
+		}
+	}
+
+	private static String opName(byte opcode) {
+		switch (opcode) {
+		case BinaryProtocol.OP_RETURN_STRING:
+			return "returnString";
+		case BinaryProtocol.OP_RETURN_INT:
+			return "returnInt";
+		case BinaryProtocol.OP_IS_CLIENT_PROXY:
+			return "isClientProxy";
+		case BinaryProtocol.OP_REGISTER_PROXY:
+			return "registerProxy";
+		case BinaryProtocol.OP_UPDATE_FILE_FROM_PROXY:
+			return "updateFileFromProxy";
+		case BinaryProtocol.OP_TRANSFER_FILE_TO_PROXY:
+		case BinaryProtocol.OP_TRANSFER_FILE_TO_PROXY_ENCODED:
+			return "transferFileToProxy";
+		case BinaryProtocol.OP_HAS_LATEST_FILE_VERSION:
+			return "hasLatestFileVersion";
+		case BinaryProtocol.OP_OPEN_FILE:
+			return "openFile";
+		case BinaryProtocol.OP_GET_FILE_VERSION:
+			return "getFileVersion";
+		case BinaryProtocol.OP_LOCATE_PEER:
+			return "locatePeer";
+		case BinaryProtocol.OP_REPORT_CACHED_VERSION:
+			return "reportCachedVersion";
+		case BinaryProtocol.OP_DROP_CACHED_VERSION:
+			return "dropCachedVersion";
+		case BinaryProtocol.OP_CREATE_FILE:
+			return "createFile";
+		case BinaryProtocol.OP_UNLINK_FILE:
+			return "unlinkFile";
+		case BinaryProtocol.OP_TRUNCATE_FILE:
+			return "truncateFile";
+		case BinaryProtocol.OP_MIGRATE_FILE_FROM_PROXY:
+			return "migrateFileFromProxy";
+		default:
+			return "op" + opcode;
+		}
+	}
+
+	private static BinaryProtocol.Encoder fileTransferResponse(int requestID, FileTransferInfo info) {
+		int sizeHint = info.hasNoError() ? info.getWireContent().length + 64 : 64;
+		BinaryProtocol.Encoder response = new BinaryProtocol.Encoder(requestID, BinaryProtocol.STATUS_OK, sizeHint);
+		BinaryProtocol.putFileTransfer(response, info);
+		return response;
+	}
+
+}
@@ -0,0 +1,324 @@
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Proxy side of the binary transport. Implements ServerInterface on top of
+ * one persistent connection to the Server. Calls from any number of client
+ * threads are pipelined on that connection; a single reader thread matches
+ * the responses back to the waiting callers by request ID.
+ *
+ * When the connection fails, the calls waiting on it fail and the next call
+ * opens a new one. Reconnects that keep failing are spaced out, from
+ * MIN_RECONNECT_DELAY_MS up to MAX_RECONNECT_DELAY_MS, and calls made in
+ * between fail at once. A call that gets no response within its timeout
+ * fails without taking the connection down.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class BinaryServerStub implements ServerInterface {
+
+	public static final String CALL_TIMEOUT_PROPERTY = "binary.callTimeoutMs";
+
+	private static final long DEFAULT_CALL_TIMEOUT_MS = 60000;
+	private static final int CONNECT_TIMEOUT_MS = 5000;
+	private static final long MIN_RECONNECT_DELAY_MS = 100;
+	private static final long MAX_RECONNECT_DELAY_MS = 5000;
+
+	private final String host;
+	private final int port;
+	private final long callTimeoutMs;
+
+	private final AtomicInteger nextRequestID = new AtomicInteger(1);
+
+	// the current connection, replaced by the first call after it fails
+	private volatile Connection connection;
+	private volatile boolean closed;
+	// reconnect backoff, guarded by connectLock
+	private final Object connectLock = new Object();
+	private long reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+	private long nextConnectNanos;
+
+	/**
+	 * One connection to the Server and the calls waiting on it.
+	 */
+	private static class Connection {
+
+		final SocketChannel channel;
+		final Object writeLock = new Object();
+		final Map<Integer, CompletableFuture<ByteBuffer>> pendingCalls = new ConcurrentHashMap<>();
+
+		// set once the connection has failed
+		volatile IOException failure;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		void fail(IOException e) {
+			failure = e;
+			for (Integer requestID : pendingCalls.keySet()) {
+				CompletableFuture<ByteBuffer> call = pendingCalls.remove(requestID);
+				if (call != null) {
+					call.completeExceptionally(e);
+				}
+			}
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	public BinaryServerStub(String host, int port) throws IOException {
+		this(host, port, Long.getLong(CALL_TIMEOUT_PROPERTY, DEFAULT_CALL_TIMEOUT_MS));
+	}
+
+	public BinaryServerStub(String host, int port, long callTimeoutMs) throws IOException {
+		this.host = host;
+		this.port = port;
+		this.callTimeoutMs = callTimeoutMs;
+		connection = open();
+	}
+
+	private Connection open() throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.socket().connect(WanEmulator.route(host, port), CONNECT_TIMEOUT_MS);
+			channel.socket().setTcpNoDelay(true);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		Connection conn = new Connection(channel);
+		Thread reader = new Thread(() -> readResponses(conn), "binary-stub-reader-" + host + ":" + port);
+		reader.setDaemon(true);
+		reader.start();
+		return conn;
+	}
+
+	private void readResponses(Connection conn) {
+		ByteBuffer lengthBuf = ByteBuffer.allocate(4);
+		try {
+			while (true) {
+				ByteBuffer frame = BinaryProtocol.readFrame(conn.channel, lengthBuf);
+				int requestID = frame.getInt();
+				CompletableFuture<ByteBuffer> call = conn.pendingCalls.remove(requestID);
+				if (call != null) {
+					call.complete(frame);
+				}
+			}
+		} catch (IOException e) {
+			conn.fail(e);
+		}
+	}
+
+	// the live connection, reopened if the last one failed and the backoff allows
+	private Connection connection() throws RemoteException {
+
+		Connection conn = connection;
+		if (conn.failure == null) {
+			return conn;
+		}
+		synchronized (connectLock) {
+			conn = connection;
+			if (conn.failure == null) {
+				return conn;
+			}
+			if (closed) {
+				throw new RemoteException("Stub closed");
+			}
+			if (System.nanoTime() - nextConnectNanos < 0) {
+				throw new RemoteException("Connection to server failed", conn.failure);
+			}
+			try {
+				conn = open();
+			} catch (IOException e) {
+				nextConnectNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(reconnectDelayMs);
+				reconnectDelayMs = Math.min(reconnectDelayMs * 2, MAX_RECONNECT_DELAY_MS);
+				throw new RemoteException("Failed to reconnect to server", e);
+			}
+			reconnectDelayMs = MIN_RECONNECT_DELAY_MS;
+			connection = conn;
+			return conn;
+		}
+	}
+
+	private BinaryProtocol.Encoder newRequest(byte opcode) {
+		return newRequest(opcode, 64);
+	}
+
+	private BinaryProtocol.Encoder newRequest(byte opcode, int sizeHint) {
+		return new BinaryProtocol.Encoder(nextRequestID.getAndIncrement(), opcode, sizeHint)
+				.putLong(Trace.currentId());
+	}
+
+	/**
+	 * Sends one request and blocks until its response arrives. Returns the
+	 * response payload, positioned after the status byte.
+	 */
+	private ByteBuffer call(BinaryProtocol.Encoder request) throws RemoteException {
+
+		ByteBuffer frame = request.finish();
+		if (frame.remaining() - 4 > BinaryProtocol.MAX_FRAME_SIZE) {
+			throw new RemoteException("Request of " + frame.remaining() + " bytes is too large");
+		}
+
+		Connection conn = connection();
+		int requestID = frame.getInt(4);
+		CompletableFuture<ByteBuffer> call = new CompletableFuture<>();
+		conn.pendingCalls.put(requestID, call);
+		// the reader may have failed between getting the connection and the put
+		if (conn.failure != null && conn.pendingCalls.remove(requestID) != null) {
+			throw new RemoteException("Connection to server failed", conn.failure);
+		}
+
+		try {
+			synchronized (conn.writeLock) {
+				BinaryProtocol.writeFully(conn.channel, frame);
+			}
+		} catch (IOException e) {
+			conn.fail(e);
+			throw new RemoteException("Failed to send request", e);
+		}
+
+		ByteBuffer response;
+		try {
+			response = call.get(callTimeoutMs, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			conn.pendingCalls.remove(requestID);
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted while waiting for server", e);
+		} catch (ExecutionException e) {
+			throw new RemoteException("Connection to server failed", e.getCause());
+		} catch (TimeoutException e) {
+			conn.pendingCalls.remove(requestID);
+			throw new RemoteException("No response from server in " + callTimeoutMs + " ms");
+		}
+
+		// the server ran the call and failed it, as RMI reports it
+		if (response.get() != BinaryProtocol.STATUS_OK) {
+			throw new ServerException(BinaryProtocol.getString(response));
+		}
+		return response;
+	}
+
+	public void close() {
+		closed = true;
+		connection.fail(new IOException("Stub closed"));
+	}
+
+	@Override
+	public String returnString() throws RemoteException {
+		return BinaryProtocol.getString(call(newRequest(BinaryProtocol.OP_RETURN_STRING)));
+	}
+
+	@Override
+	public int returnInt() throws RemoteException {
+		return call(newRequest(BinaryProtocol.OP_RETURN_INT)).getInt();
+	}
+
+	@Override
+	public boolean isClientProxy(int clientID) throws RemoteException {
+		BinaryProtocol.Encoder request = newRequest(BinaryProtocol.OP_IS_CLIENT_PROXY).putInt(clientID);
+		return BinaryProtocol.getBoolean(call(request));
+	}
+
+	@Override
+	public int registerProxy() throws RemoteException {
+		return call(newRequest(BinaryProtocol.OP_REGISTER_PROXY)).getInt();
+	}
+
+	@Override
+	public long updateFileFromProxy(FileTransferInfo fileTransInfo) throws RemoteException {
+		int sizeHint = fileTransInfo.hasNoError() ? fileTransInfo.getWireContent().length + 64 : 64;
+		BinaryProtocol.Encoder request = newRequest(BinaryProtocol.OP_UPDATE_FILE_FROM_PROXY, sizeHint);
+		BinaryProtocol.putFileTransfer(request, fileTransInfo);
+		return call(request).getLong();
+	}
+
+	@Override
+	public FileTransferInfo transferFileToProxy(String fname) throws RemoteException {
+		BinaryProtocol.Encoder request = newRequest(BinaryProtocol.OP_TRANSFER_FILE_TO_PROXY).putString(fname);
+		return BinaryProtocol.getFileTransfer(call(request));
+	}
+
+	@Override
+	public FileTransferInfo transferFileToProxy(String fname, int acceptedCodecs) throws RemoteException {
+		BinaryProtocol.Encoder request = newRequest(BinaryProtocol.OP_TRANSFER_FILE_TO_PROXY_ENCODED)
+				.putString(fname).putInt(acceptedCodecs);
+		return BinaryProtocol.getFileTransfer(call(request));
+	}
+
+	@Override
+	public boolean hasLatestFileVersion(int proxyID, String fname) throws RemoteException {
+		BinaryProtocol.Encoder request = newRequest(BinaryProtocol.OP_HAS_LATEST_FILE_VERSION)
+				.putInt(proxyID).putString(fname);
+		return BinaryProtocol.getBoolean(call(request));
+	}
+
+	@Override
+	public long getFileVersion(String fname) throws RemoteException {
+		return call(newRequest(BinaryProtocol.OP_GET_FILE_VERSION).putString(fname)).getLong();
+	}
+
+	@Override
+	public int openFile(int proxyID, String fname) throws RemoteException {
+		BinaryProtocol.Encoder request = newRequest(BinaryProtocol.OP_OPEN_FILE)
+				.putInt(proxyID).putString(fname);
+		return call(request).getInt();
+	}
+
+	@Override
+	public String locatePeer(String fname, long version, String requester) throws RemoteException {
+		BinaryProtocol.Encoder request = newRequest(BinaryProtocol.OP_LOCATE_PEER)
+				.putString(fname).putLong(version).putString(requester);
+		return BinaryProtocol.getString(call(request));
+	}
+
+	@Override
+	public void reportCachedVersion(String peer, String fname, long version) throws RemoteException {
+		call(newRequest(BinaryProtocol.OP_REPORT_CACHED_VERSION).putString(peer).putString(fname).putLong(version));
+	}
+
+	@Override
+	public void dropCachedVersion(String peer, String fname) throws RemoteException {
+		call(newRequest(BinaryProtocol.OP_DROP_CACHED_VERSION).putString(peer).putString(fname));
+	}
+
+	@Override
+	public long createFile(String fname) throws RemoteException {
+		return call(newRequest(BinaryProtocol.OP_CREATE_FILE).putString(fname)).getLong();
+	}
+
+	@Override
+	public long unlinkFile(String fname) throws RemoteException {
+		return call(newRequest(BinaryProtocol.OP_UNLINK_FILE).putString(fname)).getLong();
+	}
+
+	@Override
+	public long truncateFile(String fname, long length) throws RemoteException {
+		return call(newRequest(BinaryProtocol.OP_TRUNCATE_FILE).putString(fname).putLong(length)).getLong();
+	}
+
+	@Override
+	public long migrateFileFromProxy(FileTransferInfo fileTransInfo) throws RemoteException {
+		int sizeHint = fileTransInfo.hasNoError() ? fileTransInfo.getWireContent().length + 64 : 64;
+		BinaryProtocol.Encoder request = newRequest(BinaryProtocol.OP_MIGRATE_FILE_FROM_PROXY, sizeHint);
+		BinaryProtocol.putFileTransfer(request, fileTransInfo);
+		return call(request).getLong();
+	}
+
+}
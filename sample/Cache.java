@@ -1,6 +1,20 @@
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 /**
  * 
@@ -12,11 +26,308 @@ public class Cache {
 	
 	private static Map<Integer, FileOpenInfo> files;
 
-	// private String dir = "./cache";
-	// public String getFilePath(String fname)
+	// files held in the cache directory, least recently used first
+	private final Map<String, CacheEntry> entries;
+	private long usedBytes;
+	
+	// eviction is decided by the policy once usedBytes exceeds capacity
+	private final long capacity;
+	private final CachePolicy policy;
+	private final CacheStats stats;
+	
+	// where the cached files live, null if the cache has no directory
+	private final CacheStore store;
+	// on-disk copy of entries, null if the cache is not persisted
+	private final CacheJournal journal;
 	
 	public Cache() {
 		files = new LinkedHashMap<>();
+		entries = new LinkedHashMap<>(16, 0.75f, true);
+		store = null;
+		journal = null;
+		capacity = Long.MAX_VALUE;
+		policy = new LruPolicy();
+		stats = new CacheStats();
+	}
+	
+	/**
+	 * A bounded index with no directory or journal behind it, for measuring
+	 * the policies on their own.
+	 */
+	public Cache(long capacity, CachePolicy policy) {
+		this(null, null, new LinkedHashMap<>(16, 0.75f, true), capacity, policy);
+	}
+	
+	private Cache(CacheStore store, CacheJournal journal, Map<String, CacheEntry> loaded,
+			long capacity, CachePolicy policy) {
+		files = new LinkedHashMap<>();
+		entries = loaded;
+		this.store = store;
+		this.journal = journal;
+		this.capacity = capacity;
+		this.policy = policy;
+		this.stats = new CacheStats();
+		for (CacheEntry entry : entries.values()) {
+			usedBytes += entry.getSize();
+			policy.onInsert(entry.getFileName(), entry.getSize());
+		}
+	}
+	
+	/**
+	 * Rebuilds the cache from the index persisted in cacheDir. Entries whose
+	 * file is missing or has the wrong size are dropped, and so are files in
+	 * the directory that no entry accounts for (orphans and half-written
+	 * downloads). The index is then compacted into a fresh snapshot.
+	 */
+	public static Cache load(String cacheDir, long capacity, CachePolicy policy) {
+		
+		new File(cacheDir).mkdirs();
+		CacheStore store = new CacheStore(cacheDir);
+		CacheJournal journal = new CacheJournal(cacheDir);
+		Map<String, CacheEntry> loaded = journal.load();
+		
+		// drop entries whose file did not survive
+		List<String> broken = new ArrayList<>();
+		for (CacheEntry entry : loaded.values()) {
+			File file = new File(store.pathFor(entry));
+			if (!file.isFile() || file.length() != entry.getSize()) {
+				broken.add(entry.getFileName());
+			}
+		}
+		for (String fname : broken) {
+			loaded.remove(fname);
+		}
+		
+		// drop files nobody knows about, including leftover temp files
+		Path root = Paths.get(cacheDir);
+		Set<Path> known = new HashSet<>();
+		for (CacheEntry entry : loaded.values()) {
+			known.add(Paths.get(store.pathFor(entry)).normalize());
+		}
+		// only files named the way the store names them, cacheDir may hold anything else
+		try (Stream<Path> walk = Files.walk(root, CacheStore.MAX_DEPTH)) {
+			walk.filter(Files::isRegularFile)
+				.filter(store::isStoreFile)
+				.filter(p -> !known.contains(p.normalize()))
+				.forEach(p -> p.toFile().delete());
+		} catch (IOException e) {
+			System.err.println("Failed to scan cache directory : " + e.getMessage());
+		}
+		
+		Cache cache = new Cache(store, journal, loaded, capacity, policy);
+		synchronized (cache) {
+			// the capacity may have shrunk since the last run
+			cache.evictIfNeeded(null);
+			journal.compact(new ArrayList<>(loaded.values()));
+		}
+		return cache;
+	}
+	
+	/**
+	 * Checks every entry against the server on a background thread, dropping
+	 * those that are out of date or whose content no longer matches its checksum.
+	 * The checks run as prefetches on transfers, behind the proxy's own traffic.
+	 */
+	public void revalidateInBackground(ServerRing servers, TransferScheduler transfers) {
+		
+		List<CacheEntry> snapshot;
+		synchronized (this) {
+			snapshot = new ArrayList<>(entries.values());
+		}
+		if (snapshot.isEmpty()) {
+			return;
+		}
+		
+		Thread t = new Thread(() -> {
+			for (CacheEntry entry : snapshot) {
+				String fname = entry.getFileName();
+				try {
+					long version = transfers.run(servers.ownerOf(fname), TransferScheduler.Priority.PREFETCH, 0,
+							() -> servers.serverFor(fname).getFileVersion(fname));
+					if (version != entry.getVersion() || !checksumMatches(entry)) {
+						invalidate(entry);
+					}
+				} catch (IOException e) {
+					System.err.println("Cache revalidation stopped : " + e.getMessage());
+					return;
+				}
+			}
+		}, "cache-revalidation");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	private boolean checksumMatches(CacheEntry entry) {
+		CRC32 crc = new CRC32();
+		byte[] buf = new byte[64 * 1024];
+		try (InputStream in = new BufferedInputStream(new FileInputStream(store.pathFor(entry)))) {
+			int len;
+			while ((len = in.read(buf)) > 0) {
+				crc.update(buf, 0, len);
+			}
+		} catch (IOException e) {
+			return false;
+		}
+		return crc.getValue() == entry.getChecksum();
+	}
+	
+	// removes entry only if it was not replaced in the meantime
+	private synchronized void invalidate(CacheEntry entry) {
+		if (entries.get(entry.getFileName()) == entry) {
+			removeEntry(entry.getFileName());
+		}
+	}
+	
+	/*
+	 * Cached file index
+	 */
+	
+	/**
+	 * Adds or replaces the entry of a file. A replaced version's file is
+	 * retired, it goes away once nobody reads it.
+	 */
+	public synchronized void putEntry(CacheEntry entry) {
+		CacheEntry old = entries.remove(entry.getFileName());
+		if (old != null) {
+			usedBytes -= old.getSize();
+			if (store != null && old.getVersion() != entry.getVersion()) {
+				store.retire(store.pathFor(old));
+			}
+		}
+		entries.put(entry.getFileName(), entry);
+		usedBytes += entry.getSize();
+		if (journal != null) {
+			journal.recordPut(entry);
+		}
+		policy.onInsert(entry.getFileName(), entry.getSize());
+		stats.recordInsertion();
+		
+		// never evict the file that is being installed
+		evictIfNeeded(entry.getFileName());
+		if (journal != null) {
+			compactIfNeeded();
+		}
+	}
+	
+	private void evictIfNeeded(String keep) {
+		while (usedBytes > capacity) {
+			String victim = policy.selectVictim();
+			if (victim == null || victim.equals(keep)) {
+				return;
+			}
+			CacheEntry evicted = removeEntry(victim);
+			if (evicted == null) {
+				// the policy is out of sync with the index, forget the name
+				policy.onRemove(victim);
+				continue;
+			}
+			stats.recordEviction(evicted.getSize());
+		}
+	}
+	
+	/**
+	 * Looks up the given version of a cached file and marks the file as most
+	 * recently used. Another version held is stale: it is not returned and
+	 * the lookup counts as a miss.
+	 */
+	public synchronized CacheEntry getEntry(String fname, long version) {
+		CacheEntry entry = entries.get(fname);
+		policy.onAccess(fname);
+		if (entry == null || entry.getVersion() != version) {
+			stats.recordMiss();
+			return null;
+		}
+		stats.recordHit();
+		// recency stays in memory, it reaches disk with the next snapshot
+		return entry;
+	}
+	
+	/**
+	 * Looks up the given version of a file and pins its version file (see
+	 * CacheStore.acquire) under the index lock, so eviction cannot delete it
+	 * until the caller releases it. Returns null if that version is not cached.
+	 */
+	public synchronized CacheEntry acquireEntry(String fname, long version) {
+		CacheEntry entry = entries.get(fname);
+		if (entry == null || entry.getVersion() != version) {
+			return null;
+		}
+		store.acquire(store.pathFor(entry));
+		return entry;
+	}
+	
+	/**
+	 * Adds or replaces the entry of a file like putEntry, and pins the new
+	 * version file before the index lock is let go.
+	 */
+	public synchronized void putAndAcquireEntry(CacheEntry entry) {
+		putEntry(entry);
+		store.acquire(store.pathFor(entry));
+	}
+	
+	/**
+	 * Looks up a cached file without counting it as a use.
+	 */
+	public synchronized CacheEntry peekEntry(String fname) {
+		return entries.get(fname);
+	}
+	
+	/**
+	 * Removes the entry of a file and retires its file.
+	 */
+	public synchronized CacheEntry removeEntry(String fname) {
+		CacheEntry old = entries.remove(fname);
+		if (old != null) {
+			usedBytes -= old.getSize();
+			policy.onRemove(fname);
+			if (store != null) {
+				store.retire(store.pathFor(old));
+			}
+			if (journal != null) {
+				journal.recordRemove(fname);
+				compactIfNeeded();
+			}
+		}
+		return old;
+	}
+	
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+	
+	public synchronized int getNumEntries() {
+		return entries.size();
+	}
+	
+	public CacheStore getStore() {
+		return store;
+	}
+	
+	public long getCapacity() {
+		return capacity;
+	}
+	
+	public String getPolicyName() {
+		return policy.getName();
+	}
+	
+	public synchronized CacheStats getStats() {
+		return stats.copy();
+	}
+	
+	/**
+	 * Writes the current index out as a snapshot, e.g. on shutdown.
+	 */
+	public synchronized void persist() {
+		if (journal != null) {
+			journal.compact(new ArrayList<>(entries.values()));
+		}
+	}
+	
+	private void compactIfNeeded() {
+		if (journal.needsCompaction()) {
+			journal.compact(new ArrayList<>(entries.values()));
+		}
 	}
 	
 	public boolean containsFile(int fd) {
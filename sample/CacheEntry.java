@@ -0,0 +1,41 @@
+
+
+
+/**
+ * Metadata of one file held in the proxy cache directory.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class CacheEntry {
+
+	private final String fname;
+	private final long version;
+	private final long size;
+	// CRC32 of the file content
+	private final long checksum;
+
+	public CacheEntry(String fname, long version, long size, long checksum) {
+		this.fname = fname;
+		this.version = version;
+		this.size = size;
+		this.checksum = checksum;
+	}
+
+	public String getFileName() {
+		return fname;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getChecksum() {
+		return checksum;
+	}
+
+}
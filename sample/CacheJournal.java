@@ -0,0 +1,193 @@
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * On-disk copy of the cache index, so a restarted proxy knows what is already
+ * in its cache directory.
+ *
+ * The index is kept as a snapshot plus an append-only journal of the changes
+ * made since the snapshot. Both use the same record format:
+ *   PUT    [byte][UTF name][long version][long size][long checksum]
+ *   REMOVE [byte][UTF name]
+ * Replaying the records in order rebuilds both the entries and their LRU
+ * order. Cache hits are not journaled: a snapshot lists the entries in LRU
+ * order, so recency is saved whenever one is written, on persist() and when
+ * the journal grows past COMPACT_THRESHOLD PUT and REMOVE records. A
+ * snapshot is written to a temp file and renamed into place.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class CacheJournal {
+
+	public static final String SNAPSHOT_NAME = ".cache-index";
+	public static final String JOURNAL_NAME = ".cache-journal";
+
+	private static final int MAGIC = 0x15440ca7;
+	private static final int COMPACT_THRESHOLD = 10000;
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+
+	private final File snapshotFile;
+	private final File journalFile;
+
+	private DataOutputStream journal;
+	private int journalRecords;
+
+	public CacheJournal(String cacheDir) {
+		snapshotFile = new File(cacheDir, SNAPSHOT_NAME);
+		journalFile = new File(cacheDir, JOURNAL_NAME);
+	}
+
+	/**
+	 * Reads the snapshot and replays the journal. The returned map iterates
+	 * from least to most recently used. A torn record at the end of either
+	 * file, left by a crash mid-write, ends the replay of that file.
+	 */
+	public Map<String, CacheEntry> load() {
+		Map<String, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+		replay(snapshotFile, entries);
+		journalRecords = replay(journalFile, entries);
+		return entries;
+	}
+
+	private static int replay(File file, Map<String, CacheEntry> entries) {
+
+		if (!file.exists()) {
+			return 0;
+		}
+
+		int records = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC) {
+				return 0;
+			}
+			while (true) {
+				byte type = in.readByte();
+				String fname = in.readUTF();
+				switch (type) {
+				case PUT:
+					long version = in.readLong();
+					long size = in.readLong();
+					long checksum = in.readLong();
+					entries.remove(fname);
+					entries.put(fname, new CacheEntry(fname, version, size, checksum));
+					break;
+				case REMOVE:
+					entries.remove(fname);
+					break;
+				default:
+					return records;
+				}
+				records += 1;
+			}
+		} catch (EOFException e) {
+			// end of file, or a torn last record
+		} catch (IOException e) {
+			System.err.println("Failed to read cache index " + file + " : " + e.getMessage());
+		}
+		return records;
+	}
+
+	public synchronized void recordPut(CacheEntry entry) {
+		try {
+			DataOutputStream out = openJournal();
+			out.writeByte(PUT);
+			out.writeUTF(entry.getFileName());
+			out.writeLong(entry.getVersion());
+			out.writeLong(entry.getSize());
+			out.writeLong(entry.getChecksum());
+			// hand a PUT to the OS before the file is served, so it survives the
+			// proxy crashing; a PUT lost with the machine only costs a refetch
+			out.flush();
+			journalRecords += 1;
+		} catch (IOException e) {
+			System.err.println("Failed to journal cache entry : " + e.getMessage());
+		}
+	}
+
+	public synchronized void recordRemove(String fname) {
+		appendNameRecord(REMOVE, fname);
+	}
+
+	private void appendNameRecord(byte type, String fname) {
+		try {
+			DataOutputStream out = openJournal();
+			out.writeByte(type);
+			out.writeUTF(fname);
+			journalRecords += 1;
+		} catch (IOException e) {
+			System.err.println("Failed to journal cache entry : " + e.getMessage());
+		}
+	}
+
+	public synchronized boolean needsCompaction() {
+		return journalRecords >= COMPACT_THRESHOLD;
+	}
+
+	/**
+	 * Writes entries, in LRU order, as the new snapshot and starts a fresh journal.
+	 */
+	public synchronized void compact(Iterable<CacheEntry> entries) {
+
+		File tmp = new File(snapshotFile.getPath() + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+			out.writeInt(MAGIC);
+			for (CacheEntry entry : entries) {
+				out.writeByte(PUT);
+				out.writeUTF(entry.getFileName());
+				out.writeLong(entry.getVersion());
+				out.writeLong(entry.getSize());
+				out.writeLong(entry.getChecksum());
+			}
+			out.flush();
+			fos.getFD().sync();
+		} catch (IOException e) {
+			System.err.println("Failed to write cache snapshot : " + e.getMessage());
+			return;
+		}
+
+		try {
+			Files.move(tmp.toPath(), snapshotFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			closeJournal();
+			journalFile.delete();
+			journalRecords = 0;
+		} catch (IOException e) {
+			System.err.println("Failed to install cache snapshot : " + e.getMessage());
+		}
+	}
+
+	private DataOutputStream openJournal() throws IOException {
+		if (journal == null) {
+			boolean fresh = !journalFile.exists() || journalFile.length() == 0;
+			journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+			if (fresh) {
+				journal.writeInt(MAGIC);
+			}
+		}
+		return journal;
+	}
+
+	private void closeJournal() throws IOException {
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+	}
+
+}
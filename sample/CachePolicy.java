@@ -0,0 +1,43 @@
+
+
+/**
+ * Decides which cached files to keep when the proxy cache is over capacity.
+ *
+ * The Cache reports every lookup and every change to its set of files; when
+ * it needs room it asks for a victim and removes it, repeating until it fits.
+ * Policies are not thread-safe, the Cache calls them under its own lock.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public interface CachePolicy {
+
+	public static final String POLICY_PROPERTY = "cache.policy";
+	public static final String POLICY_LRU = "lru";
+	public static final String POLICY_TINYLFU = "tinylfu";
+
+	// a lookup of fname, whether or not it was cached
+	public void onAccess(String fname);
+	public void onInsert(String fname, long size);
+	public void onRemove(String fname);
+
+	// the next file to evict, null if there is nothing left
+	public String selectVictim();
+
+	public String getName();
+
+	/**
+	 * Creates the policy selected with the cache.policy system property.
+	 */
+	public static CachePolicy create(long capacity) {
+		String name = System.getProperty(POLICY_PROPERTY, POLICY_TINYLFU);
+		if (name.equals(POLICY_LRU)) {
+			return new LruPolicy();
+		}
+		if (name.equals(POLICY_TINYLFU)) {
+			return new TinyLfuPolicy(capacity);
+		}
+		throw new IllegalArgumentException("Unknown cache policy " + name);
+	}
+
+}
@@ -0,0 +1,80 @@
+
+
+/**
+ * Hit and eviction counters of the proxy cache.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class CacheStats {
+
+	private long hits;
+	private long misses;
+	private long insertions;
+	private long evictions;
+	private long evictedBytes;
+
+	public CacheStats() {
+	}
+
+	private CacheStats(CacheStats other) {
+		hits = other.hits;
+		misses = other.misses;
+		insertions = other.insertions;
+		evictions = other.evictions;
+		evictedBytes = other.evictedBytes;
+	}
+
+	public void recordHit() {
+		hits += 1;
+	}
+
+	public void recordMiss() {
+		misses += 1;
+	}
+
+	public void recordInsertion() {
+		insertions += 1;
+	}
+
+	public void recordEviction(long size) {
+		evictions += 1;
+		evictedBytes += size;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getInsertions() {
+		return insertions;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	public long getEvictedBytes() {
+		return evictedBytes;
+	}
+
+	public double getHitRatio() {
+		long lookups = hits + misses;
+		return (lookups == 0) ? 0.0 : (double) hits / lookups;
+	}
+
+	public CacheStats copy() {
+		return new CacheStats(this);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("hits=%d misses=%d hitRatio=%.4f insertions=%d evictions=%d evictedBytes=%d",
+				hits, misses, getHitRatio(), insertions, evictions, evictedBytes);
+	}
+
+}
@@ -0,0 +1,164 @@
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Maps logical file names to files under the cache directory.
+ *
+ * Each version of a file is stored at
+ *   cacheDir/ab/cd/abcd...(hash of name).version
+ * so no directory grows past a few hundred entries and nested client paths
+ * never collide. Content is first written to a temp file under cacheDir/tmp,
+ * synced and then renamed into place, so a reader never sees a partial file.
+ * Versions live side by side: a version that is replaced or evicted while
+ * descriptors still read it is retired and deleted once the last of them
+ * lets go.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class CacheStore {
+
+	public static final String TMP_DIR = "tmp";
+	// deepest level of cacheDir the store writes to
+	public static final int MAX_DEPTH = 3;
+
+	private static final String TMP_PREFIX = "xfer";
+	private static final String TMP_SUFFIX = ".tmp";
+	private static final Pattern SHARD = Pattern.compile("[0-9a-f]{2}");
+	private static final Pattern VERSION_FILE = Pattern.compile("[0-9a-f]{32}\\.-?[0-9]+");
+
+	private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	private final File root;
+	private final File tmpDir;
+
+	// number of open descriptors reading each version file
+	private final Map<String, Integer> readers = new HashMap<>();
+	// version files to delete once they have no readers left
+	private final Set<String> retired = new HashSet<>();
+
+	public CacheStore(String cacheDir) {
+		root = new File(cacheDir);
+		tmpDir = new File(root, TMP_DIR);
+		tmpDir.mkdirs();
+	}
+
+	private static String hash(String fname) {
+		byte[] digest = DIGEST.get().digest(fname.getBytes(StandardCharsets.UTF_8));
+		StringBuilder sb = new StringBuilder(32);
+		for (int i = 0; i < 16; i++) {
+			sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(digest[i] & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Where the given version of fname lives in the cache.
+	 */
+	public String pathFor(String fname, long version) {
+		String h = hash(fname);
+		return root.getPath() + "/" + h.substring(0, 2) + "/" + h.substring(2, 4) + "/" + h + "." + version;
+	}
+
+	public String pathFor(CacheEntry entry) {
+		return pathFor(entry.getFileName(), entry.getVersion());
+	}
+
+	public File newTempFile() throws IOException {
+		return File.createTempFile(TMP_PREFIX, TMP_SUFFIX, tmpDir);
+	}
+
+	/**
+	 * Whether path is a file the store could have made: a version file in
+	 * its shard directory, or a temp file.
+	 */
+	public boolean isStoreFile(Path path) {
+
+		Path rel = root.toPath().relativize(path);
+		String name = rel.getFileName().toString();
+		if (rel.getNameCount() == 2) {
+			return rel.getName(0).toString().equals(TMP_DIR)
+					&& name.startsWith(TMP_PREFIX) && name.endsWith(TMP_SUFFIX);
+		}
+		if (rel.getNameCount() == 3) {
+			String dir1 = rel.getName(0).toString();
+			String dir2 = rel.getName(1).toString();
+			return SHARD.matcher(dir1).matches() && SHARD.matcher(dir2).matches()
+					&& VERSION_FILE.matcher(name).matches() && name.startsWith(dir1 + dir2);
+		}
+		return false;
+	}
+
+	/**
+	 * Moves a fully written and synced temp file into place as the given
+	 * version of fname, and returns its path.
+	 */
+	public String install(File tmp, String fname, long version) throws IOException {
+
+		File target = new File(pathFor(fname, version));
+		File dir = target.getParentFile();
+		dir.mkdirs();
+		Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		// make the rename itself durable
+		try (FileChannel dirChannel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			dirChannel.force(true);
+		} catch (IOException e) {
+			// not every platform lets a directory be synced
+		}
+
+		synchronized (this) {
+			retired.remove(target.getPath());
+		}
+		return target.getPath();
+	}
+
+	public synchronized void acquire(String fpath) {
+		readers.merge(fpath, 1, Integer::sum);
+	}
+
+	public synchronized void release(String fpath) {
+		Integer count = readers.get(fpath);
+		if (count == null || count <= 1) {
+			readers.remove(fpath);
+			if (retired.remove(fpath)) {
+				new File(fpath).delete();
+			}
+		} else {
+			readers.put(fpath, count - 1);
+		}
+	}
+
+	/**
+	 * Deletes a version file now, or once its last reader is done.
+	 */
+	public synchronized void retire(String fpath) {
+		if (readers.containsKey(fpath)) {
+			retired.add(fpath);
+		} else {
+			new File(fpath).delete();
+		}
+	}
+
+}
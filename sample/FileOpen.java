@@ -8,10 +8,32 @@ public class FileOpen implements FileOpenInfo {
 	
 	private String fname;
 	private FileHandling.OpenOption openOp;
+	private long position;
+	private long version;
+	private MappedFiles.Mapping mapping;
+	private Inode inode;
+	private boolean writer;
+	private String pinnedPath;
+	private boolean dirty;
+	private String localPath;
+	private long size;
 	
 	public FileOpen(String fname, FileHandling.OpenOption openOp) {
+		this(fname, openOp, -1);
+	}
+	
+	public FileOpen(String fname, FileHandling.OpenOption openOp, long version) {
 		this.fname = fname;
 		this.openOp = openOp;
+		this.version = version;
+		this.position = 0;
+	}
+	
+	public FileOpen(String fname, FileHandling.OpenOption openOp, Inode inode) {
+		this(fname, openOp, inode.getVersion());
+		this.inode = inode;
+		this.localPath = inode.getLocalPath();
+		this.size = inode.getSize();
 	}
 	
 	@Override
@@ -23,6 +45,86 @@ public class FileOpen implements FileOpenInfo {
 	public FileHandling.OpenOption getOpenOption() {
 		return openOp;
 	}
+	
+	@Override
+	public long getPosition() {
+		return position;
+	}
+	
+	@Override
+	public void setPosition(long position) {
+		this.position = position;
+	}
+	
+	@Override
+	public long getVersion() {
+		return version;
+	}
+	
+	@Override
+	public String getLocalPath() {
+		return localPath;
+	}
+	
+	@Override
+	public void setLocalPath(String localPath) {
+		this.localPath = localPath;
+	}
+	
+	@Override
+	public long getSize() {
+		return size;
+	}
+	
+	@Override
+	public void setSize(long size) {
+		this.size = size;
+	}
+	
+	@Override
+	public Inode getInode() {
+		return inode;
+	}
+	
+	@Override
+	public boolean isWriter() {
+		return writer;
+	}
+	
+	@Override
+	public void setWriter(boolean writer) {
+		this.writer = writer;
+	}
+	
+	@Override
+	public String getPinnedPath() {
+		return pinnedPath;
+	}
+	
+	@Override
+	public void setPinnedPath(String pinnedPath) {
+		this.pinnedPath = pinnedPath;
+	}
+	
+	@Override
+	public boolean isDirty() {
+		return dirty;
+	}
+	
+	@Override
+	public void setDirty(boolean dirty) {
+		this.dirty = dirty;
+	}
+	
+	@Override
+	public MappedFiles.Mapping getMapping() {
+		return mapping;
+	}
+	
+	@Override
+	public void setMapping(MappedFiles.Mapping mapping) {
+		this.mapping = mapping;
+	}
 
 }
 
@@ -9,6 +9,42 @@ public interface FileOpenInfo {
 	public String getFileName();
 	public FileHandling.OpenOption getOpenOption();
 	
+	// current offset of the descriptor
+	public long getPosition();
+	public void setPosition(long position);
+	
+	// version of the content the descriptor was opened on, -1 if unknown
+	public long getVersion();
+	
+	// the file this descriptor reads or writes: a shared version file for
+	// readers, a private copy for writers
+	public String getLocalPath();
+	public void setLocalPath(String localPath);
+	
+	// size of the file as seen through this descriptor
+	public long getSize();
+	public void setSize(long size);
+	
+	// metadata shared by every descriptor on the path
+	public Inode getInode();
+	
+	// opened to write a regular file, its private copy is committed or dropped on close
+	public boolean isWriter();
+	public void setWriter(boolean writer);
+	
+	// version file pinned for this descriptor at open, released on close, null if none
+	public String getPinnedPath();
+	public void setPinnedPath(String pinnedPath);
+	
+	// set once the descriptor has written, its changes are committed on close
+	public boolean isDirty();
+	public void setDirty(boolean dirty);
+	
+	// shared read-only mapping of the file, null if not mapped
+	public MappedFiles.Mapping getMapping();
+	public void setMapping(MappedFiles.Mapping mapping);
+	
+	
 }
 
 
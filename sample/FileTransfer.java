@@ -1,9 +1,13 @@
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
 
 /**
  * 
@@ -21,7 +25,10 @@ public class FileTransfer implements FileTransferInfo {
 	private String fpath;
 	
 	private int fileSize;
+	// content as sent on the wire, encoded with codec
 	private byte[] fileContent;
+	private TransferCodec codec;
+	private long version;
 	
 	private FileTransferError error;
 	private String errorMsg;
@@ -34,10 +41,50 @@ public class FileTransfer implements FileTransferInfo {
 		// initialize error flag and error message
 		error = FileTransferError.NONE;
 		errorMsg = "";
+		codec = TransferCodec.NONE;
+		version = -1;
 		// read file content into buffer
 		readFile();
 	}
 
+	/**
+	 * Reads the content of fname from the given file, e.g. a private copy.
+	 */
+	public FileTransfer(String fname, File source) {
+		this.fname = fname;
+		this.fpath = source.getPath();
+		error = FileTransferError.NONE;
+		errorMsg = "";
+		codec = TransferCodec.NONE;
+		version = -1;
+		readFile();
+	}
+
+	/**
+	 * Reads the file and encodes it with the best codec the receiver accepts.
+	 */
+	public FileTransfer(String fname, String dirPath, int acceptedCodecs) {
+		this(fname, dirPath);
+		if (hasNoError()) {
+			encode(TransferCodec.choose(fname, fileContent, acceptedCodecs));
+		}
+	}
+
+	/**
+	 * Rebuilds a transfer that was decoded from the binary protocol.
+	 */
+	public FileTransfer(String fname, int fileSize, TransferCodec codec, byte[] wireContent,
+			FileTransferError error, String errorMsg) {
+		this.fname = fname;
+		this.fpath = null;
+		this.error = error;
+		this.errorMsg = errorMsg;
+		this.fileSize = fileSize;
+		this.codec = codec;
+		this.fileContent = wireContent;
+		this.version = -1;
+	}
+
 	@Override
 	public String getFileName() {
 		return fname;
@@ -48,6 +95,16 @@ public class FileTransfer implements FileTransferInfo {
 		return fileSize;
 	}
 	
+	@Override
+	public long getVersion() {
+		return version;
+	}
+	
+	@Override
+	public void setVersion(long version) {
+		this.version = version;
+	}
+	
 	@Override
 	public FileTransferError getError() {
 		return error;
@@ -73,27 +130,69 @@ public class FileTransfer implements FileTransferInfo {
 		errorMsg = msg;
 	}
 	
+	@Override
+	public TransferCodec getCodec() {
+		return codec;
+	}
+	
+	@Override
+	public byte[] getWireContent() {
+		assert(fileContent != null);
+		assert(error.equals(FileTransferError.NONE));
+		return fileContent;
+	}
+	
 	@Override
 	public byte[] getFileContent() {
 		assert(fileContent != null);
-		assert(fileContent.length == fileSize);
 		assert(error.equals(FileTransferError.NONE));
-		return (fileContent);
+		if (codec == TransferCodec.NONE) {
+			return fileContent;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(fileSize);
+		try {
+			codec.decodeTo(fileContent, out);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toByteArray();
+	}
+	
+	@Override
+	public void writeContentTo(OutputStream out) throws IOException {
+		assert(fileContent != null);
+		assert(error.equals(FileTransferError.NONE));
+		codec.decodeTo(fileContent, out);
+	}
+	
+	@Override
+	public void encode(TransferCodec newCodec) {
+		assert(codec == TransferCodec.NONE);
+		assert(error.equals(FileTransferError.NONE));
+		fileContent = newCodec.encode(fileContent);
+		codec = newCodec;
 	}
 	
 	private void readFile() {
 		
 		// open file input stream, set up error variable if any
 		File file = new File(fpath);
-		BufferedInputStream inStream;
-		try {
-			inStream = new BufferedInputStream(new FileInputStream(file));
+		try (BufferedInputStream inStream = new BufferedInputStream(new FileInputStream(file))) {
 
-			// read the file content into the buffer
+			// read the file content into the buffer, a single read may come up short
 			fileSize = (int)file.length();
 			fileContent = new byte[fileSize];
-			inStream.read(fileContent, 0, fileSize);
-			
+			int off = 0;
+			int len;
+			while (off < fileSize && (len = inStream.read(fileContent, off, fileSize - off)) > 0) {
+				off += len;
+			}
+			if (off < fileSize) {
+				// the file shrank since its length was taken
+				fileSize = off;
+				fileContent = Arrays.copyOf(fileContent, off);
+			}
+
 		} catch (FileNotFoundException e) {
 			error = FileTransferError.FILE_NOT_FOUND;
 			setErrorMessage(e.getMessage());
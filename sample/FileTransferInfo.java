@@ -1,4 +1,6 @@
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 
 /**
@@ -10,11 +12,21 @@ public interface FileTransferInfo extends Serializable {
 	
 	public String getFileName();
 	public int getFileSize();
+	// server version of the content, -1 if unknown
+	public long getVersion();
+	public void setVersion(long version);
 	public String getErrorMessage();
 	public void setErrorMessage(String msg);
 
 	public byte[] getFileContent();
 	
+	// on-the-wire representation
+	public TransferCodec getCodec();
+	public byte[] getWireContent();
+	public void encode(TransferCodec codec);
+	// decode the content straight into a stream, e.g. a cache file
+	public void writeContentTo(OutputStream out) throws IOException;
+	
 	public boolean hasNoError();
 	public FileTransferError getError();
 	public void setError(FileTransferError error);
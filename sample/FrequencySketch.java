@@ -0,0 +1,86 @@
+
+
+/**
+ * Count-min sketch of recent access frequencies, with 4-bit counters packed
+ * sixteen to a long. Every counter is halved once the number of recorded
+ * accesses reaches ten times the table width, so old popularity fades out.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class FrequencySketch {
+
+	private static final int DEPTH = 4;
+	private static final int MAX_COUNT = 15;
+	private static final long[] SEEDS = {
+		0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+	};
+	// keeps the low three bits of every 4-bit counter after a shift
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	private final long[] table;
+	private final int indexMask;
+	private final int sampleSize;
+	private int additions;
+
+	public FrequencySketch(int expectedEntries) {
+		int width = Integer.highestOneBit(Math.max(expectedEntries, 64) - 1) << 1;
+		table = new long[width];
+		indexMask = width - 1;
+		sampleSize = width * 10;
+	}
+
+	public int frequency(String key) {
+		int hash = spread(key.hashCode());
+		int freq = MAX_COUNT;
+		for (int i = 0; i < DEPTH; i++) {
+			freq = Math.min(freq, counter(hash, i));
+		}
+		return freq;
+	}
+
+	public void increment(String key) {
+		int hash = spread(key.hashCode());
+		boolean added = false;
+		for (int i = 0; i < DEPTH; i++) {
+			int slot = slot(hash, i);
+			int shift = shift(hash, i);
+			if (((table[slot] >>> shift) & 0xfL) != MAX_COUNT) {
+				table[slot] += 1L << shift;
+				added = true;
+			}
+		}
+		if (added && ++additions >= sampleSize) {
+			reset();
+		}
+	}
+
+	private void reset() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		additions /= 2;
+	}
+
+	private int counter(int hash, int row) {
+		return (int) ((table[slot(hash, row)] >>> shift(hash, row)) & 0xfL);
+	}
+
+	private int slot(int hash, int row) {
+		long h = (hash + SEEDS[row]) * SEEDS[row];
+		h += h >>> 32;
+		return (int) h & indexMask;
+	}
+
+	// picks one of the sixteen counters in the slot, a different one per row
+	private static int shift(int hash, int row) {
+		return (((hash >>> (row << 3)) & 3) << 2) + (row << 4) & 63;
+	}
+
+	private static int spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+
+}
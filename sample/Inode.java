@@ -0,0 +1,114 @@
+
+
+/**
+ * Proxy-side metadata record of one path, shared by every descriptor open
+ * on it. Its fields are only changed on open, on commit of a written file,
+ * and on invalidation, so read, write and lseek never have to stat the file.
+ *
+ * The Inode object also serves as the per-path lock held while the path is
+ * being validated or fetched from the server.
+ *
+ * A MISSING Inode doubles as a negative lookup entry: until its deadline
+ * passes, opens that need the file to exist fail without asking the server.
+ *
+ * An Inode dropped from the InodeTable is marked evicted; whoever looked it
+ * up before that finds the mark once it holds the lock and looks again.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class Inode {
+
+	public enum Type {
+		// not validated against the server yet, or invalidated since
+		UNKNOWN,
+		FILE,
+		DIRECTORY,
+		MISSING
+	}
+
+	private final String fname;
+	private volatile String localPath;
+	private volatile Type type;
+	private volatile long size;
+	private volatile long version;
+	private int openCount;
+	// System.nanoTime() until which a MISSING result may be trusted
+	private volatile long missingUntil;
+	private boolean evicted;
+
+	public Inode(String fname) {
+		this.fname = fname;
+		this.type = Type.UNKNOWN;
+		this.version = -1;
+	}
+
+	public String getFileName() {
+		return fname;
+	}
+
+	public String getLocalPath() {
+		return localPath;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public synchronized void update(Type type, String localPath, long size, long version) {
+		this.type = type;
+		this.localPath = localPath;
+		this.size = size;
+		this.version = version;
+	}
+
+	public synchronized void invalidate() {
+		type = Type.UNKNOWN;
+		missingUntil = 0;
+	}
+
+	/**
+	 * Records that the server does not have the file, trusted for ttlNanos.
+	 */
+	public synchronized void markMissing(long version, long ttlNanos) {
+		update(Type.MISSING, null, 0, version);
+		missingUntil = System.nanoTime() + ttlNanos;
+	}
+
+	/**
+	 * Whether a recent lookup found the file missing and that is still trusted.
+	 */
+	public boolean isKnownMissing() {
+		return type == Type.MISSING && System.nanoTime() - missingUntil < 0;
+	}
+
+	public synchronized int getOpenCount() {
+		return openCount;
+	}
+
+	public synchronized void acquire() {
+		openCount += 1;
+	}
+
+	public synchronized int release() {
+		openCount -= 1;
+		return openCount;
+	}
+
+	public synchronized boolean isEvicted() {
+		return evicted;
+	}
+
+	public synchronized void markEvicted() {
+		evicted = true;
+	}
+
+}
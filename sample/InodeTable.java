@@ -0,0 +1,90 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * The proxy's table of Inodes, one per path that has been looked up.
+ *
+ * The table is held to maxSize entries. Once it grows past that, a sweep on
+ * a background thread drops idle Inodes, those with no descriptor open, down
+ * to three quarters of maxSize: first the ones that tell nothing (UNKNOWN,
+ * or MISSING past their TTL), then any other idle ones. Dropping one only
+ * costs a lookup on the server the next time its path is opened.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class InodeTable {
+
+	public static final String MAX_SIZE_PROPERTY = "inodes.max";
+
+	private static final int DEFAULT_MAX_SIZE = 100000;
+
+	private final ConcurrentHashMap<String, Inode> inodes = new ConcurrentHashMap<>();
+	private final int maxSize;
+	// called with an Inode's lock held as it is dropped
+	private final Consumer<Inode> onEvict;
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+
+	public InodeTable() {
+		this(DEFAULT_MAX_SIZE, inode -> { });
+	}
+
+	public InodeTable(int maxSize, Consumer<Inode> onEvict) {
+		this.maxSize = Math.max(1, maxSize);
+		this.onEvict = onEvict;
+	}
+
+	public static InodeTable create(Consumer<Inode> onEvict) {
+		return new InodeTable(Integer.getInteger(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE), onEvict);
+	}
+
+	/**
+	 * Returns the Inode of fname, creating an UNKNOWN one on first use. The
+	 * caller checks isEvicted() once it holds the Inode's lock.
+	 */
+	public Inode get(String fname) {
+		Inode inode = inodes.computeIfAbsent(fname, Inode::new);
+		if (inodes.size() > maxSize && sweeping.compareAndSet(false, true)) {
+			// a sweep may wait on the lock of an Inode being fetched, keep it off the caller
+			Thread sweeper = new Thread(this::sweep, "inode-sweeper");
+			sweeper.setDaemon(true);
+			sweeper.start();
+		}
+		return inode;
+	}
+
+	public int size() {
+		return inodes.size();
+	}
+
+	private void sweep() {
+		try {
+			int target = maxSize / 4 * 3;
+			evict(target, inode -> inode.getType() == Inode.Type.UNKNOWN
+					|| (inode.getType() == Inode.Type.MISSING && !inode.isKnownMissing()));
+			evict(target, inode -> true);
+		} finally {
+			sweeping.set(false);
+		}
+	}
+
+	private void evict(int target, Predicate<Inode> candidate) {
+		for (Inode inode : inodes.values()) {
+			if (inodes.size() <= target) {
+				return;
+			}
+			if (candidate.test(inode)) {
+				synchronized (inode) {
+					if (inode.getOpenCount() == 0 && !inode.isEvicted()) {
+						inode.markEvicted();
+						inodes.remove(inode.getFileName(), inode);
+						onEvict.accept(inode);
+					}
+				}
+			}
+		}
+	}
+
+}
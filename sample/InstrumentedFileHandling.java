@@ -0,0 +1,145 @@
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wraps a client's FileHandling, tracing every call (see Trace) and recording
+ * its latency and error code in the proxy's Metrics. A call that throws is
+ * still finished, as a failure, so the trace never outlives it, and is
+ * counted as an exception rather than as an error code.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class InstrumentedFileHandling implements FileHandling {
+
+	private final FileHandling delegate;
+
+	private final Metrics.Op open;
+	private final Metrics.Op close;
+	private final Metrics.Op write;
+	private final Metrics.Op read;
+	private final Metrics.Op lseek;
+	private final Metrics.Op unlink;
+	private final LongAdder bytesRead;
+	private final LongAdder bytesWritten;
+
+	public InstrumentedFileHandling(FileHandling delegate, Metrics metrics) {
+		this.delegate = delegate;
+		open = metrics.op("fh.open");
+		close = metrics.op("fh.close");
+		write = metrics.op("fh.write");
+		read = metrics.op("fh.read");
+		lseek = metrics.op("fh.lseek");
+		unlink = metrics.op("fh.unlink");
+		bytesRead = metrics.counter("fh.bytesRead");
+		bytesWritten = metrics.counter("fh.bytesWritten");
+	}
+
+	@Override
+	public int open(String path, OpenOption o) {
+		long start = Trace.begin("proxy", "open", path, 0);
+		int result;
+		try {
+			result = delegate.open(path, o);
+		} catch (Throwable e) {
+			Trace.finish(-1);
+			open.recordException(start);
+			throw e;
+		}
+		Trace.finish(result);
+		open.record(start, result);
+		return result;
+	}
+
+	@Override
+	public int close(int fd) {
+		long start = Trace.begin("proxy", "close", null, 0);
+		int result;
+		try {
+			result = delegate.close(fd);
+		} catch (Throwable e) {
+			Trace.finish(-1);
+			close.recordException(start);
+			throw e;
+		}
+		Trace.finish(result);
+		close.record(start, result);
+		return result;
+	}
+
+	@Override
+	public long write(int fd, byte[] buf) {
+		long start = Trace.begin("proxy", "write", null, 0);
+		long result;
+		try {
+			result = delegate.write(fd, buf);
+		} catch (Throwable e) {
+			Trace.finish(-1);
+			write.recordException(start);
+			throw e;
+		}
+		if (result > 0) {
+			bytesWritten.add(result);
+		}
+		Trace.finish(result);
+		write.record(start, result);
+		return result;
+	}
+
+	@Override
+	public long read(int fd, byte[] buf) {
+		long start = Trace.begin("proxy", "read", null, 0);
+		long result;
+		try {
+			result = delegate.read(fd, buf);
+		} catch (Throwable e) {
+			Trace.finish(-1);
+			read.recordException(start);
+			throw e;
+		}
+		if (result > 0) {
+			bytesRead.add(result);
+		}
+		Trace.finish(result);
+		read.record(start, result);
+		return result;
+	}
+
+	@Override
+	public long lseek(int fd, long pos, LseekOption o) {
+		long start = Trace.begin("proxy", "lseek", null, 0);
+		long result;
+		try {
+			result = delegate.lseek(fd, pos, o);
+		} catch (Throwable e) {
+			Trace.finish(-1);
+			lseek.recordException(start);
+			throw e;
+		}
+		Trace.finish(result);
+		lseek.record(start, result);
+		return result;
+	}
+
+	@Override
+	public int unlink(String path) {
+		long start = Trace.begin("proxy", "unlink", path, 0);
+		int result;
+		try {
+			result = delegate.unlink(path);
+		} catch (Throwable e) {
+			Trace.finish(-1);
+			unlink.recordException(start);
+			throw e;
+		}
+		Trace.finish(result);
+		unlink.record(start, result);
+		return result;
+	}
+
+	@Override
+	public void clientdone() {
+		delegate.clientdone();
+	}
+
+}
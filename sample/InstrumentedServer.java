@@ -0,0 +1,290 @@
+
+import java.rmi.RemoteException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wraps a ServerInterface and records the latency and failures of every
+ * call, plus the file bytes moved, under the given prefix. The Proxy wraps
+ * its stubs with it and the Server wraps itself, so both ends of a call are
+ * measured.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class InstrumentedServer implements ServerInterface {
+
+	private final ServerInterface delegate;
+
+	private final Metrics.Op returnString;
+	private final Metrics.Op returnInt;
+	private final Metrics.Op isClientProxy;
+	private final Metrics.Op registerProxy;
+	private final Metrics.Op updateFileFromProxy;
+	private final Metrics.Op transferFileToProxy;
+	private final Metrics.Op hasLatestFileVersion;
+	private final Metrics.Op getFileVersion;
+	private final Metrics.Op openFile;
+	private final Metrics.Op locatePeer;
+	private final Metrics.Op reportCachedVersion;
+	private final Metrics.Op dropCachedVersion;
+	private final Metrics.Op createFile;
+	private final Metrics.Op unlinkFile;
+	private final Metrics.Op truncateFile;
+	private final Metrics.Op migrateFileFromProxy;
+	private final LongAdder bytesUploaded;
+	private final LongAdder bytesDownloaded;
+
+	public InstrumentedServer(ServerInterface delegate, Metrics metrics, String prefix) {
+		this.delegate = delegate;
+		returnString = metrics.op(prefix + ".returnString");
+		returnInt = metrics.op(prefix + ".returnInt");
+		isClientProxy = metrics.op(prefix + ".isClientProxy");
+		registerProxy = metrics.op(prefix + ".registerProxy");
+		updateFileFromProxy = metrics.op(prefix + ".updateFileFromProxy");
+		transferFileToProxy = metrics.op(prefix + ".transferFileToProxy");
+		hasLatestFileVersion = metrics.op(prefix + ".hasLatestFileVersion");
+		getFileVersion = metrics.op(prefix + ".getFileVersion");
+		openFile = metrics.op(prefix + ".openFile");
+		locatePeer = metrics.op(prefix + ".locatePeer");
+		reportCachedVersion = metrics.op(prefix + ".reportCachedVersion");
+		dropCachedVersion = metrics.op(prefix + ".dropCachedVersion");
+		createFile = metrics.op(prefix + ".createFile");
+		unlinkFile = metrics.op(prefix + ".unlinkFile");
+		truncateFile = metrics.op(prefix + ".truncateFile");
+		migrateFileFromProxy = metrics.op(prefix + ".migrateFileFromProxy");
+		bytesUploaded = metrics.counter(prefix + ".bytesUploaded");
+		bytesDownloaded = metrics.counter(prefix + ".bytesDownloaded");
+	}
+
+	@Override
+	public String returnString() throws RemoteException {
+		long start = System.nanoTime();
+		try {
+			String result = delegate.returnString();
+			returnString.record(start, 0);
+			return result;
+		} catch (RemoteException | RuntimeException e) {
+			returnString.recordException(start);
+			throw e;
+		}
+	}
+
+	@Override
+	public int returnInt() throws RemoteException {
+		long start = System.nanoTime();
+		try {
+			int result = delegate.returnInt();
+			returnInt.record(start, 0);
+			return result;
+		} catch (RemoteException | RuntimeException e) {
+			returnInt.recordException(start);
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean isClientProxy(int clientID) throws RemoteException {
+		long start = System.nanoTime();
+		try {
+			boolean result = delegate.isClientProxy(clientID);
+			isClientProxy.record(start, 0);
+			return result;
+		} catch (RemoteException | RuntimeException e) {
+			isClientProxy.recordException(start);
+			throw e;
+		}
+	}
+
+	@Override
+	public int registerProxy() throws RemoteException {
+		long start = System.nanoTime();
+		try {
+			int result = delegate.registerProxy();
+			registerProxy.record(start, 0);
+			return result;
+		} catch (RemoteException | RuntimeException e) {
+			registerProxy.recordException(start);
+			throw e;
+		}
+	}
+
+	@Override
+	public long updateFileFromProxy(FileTransferInfo fileTransInfo) throws RemoteException {
+		long start = System.nanoTime();
+		try {
+			long result = delegate.updateFileFromProxy(fileTransInfo);
+			updateFileFromProxy.record(start, 0);
+			if (fileTransInfo.hasNoError()) {
+				bytesUploaded.add(fileTransInfo.getWireContent().length);
+			}
+			return result;
+		} catch (RemoteException | RuntimeException e) {
+			updateFileFromProxy.recordException(start);
+			throw e;
+		}
+	}
+
+	@Override
+	public FileTransferInfo transferFileToProxy(String fname) throws RemoteException {
+		long start = System.nanoTime();
+		try {
+			FileTransferInfo result = delegate.transferFileToProxy(fname);
+			transferFileToProxy.record(start, 0);
+			if (result.hasNoError()) {
+				bytesDownloaded.add(result.getWireContent().length);
+			}
+			return result;
+		} catch (RemoteException | RuntimeException e) {
+			transferFileToProxy.recordException(start);
+			throw e;
+		}
+	}
+
+	@Override
+	public FileTransferInfo transferFileToProxy(String fname, int acceptedCodecs) throws RemoteException {
+		long start = System.nanoTime();
+		try {
+			FileTransferInfo result = delegate.transferFileToProxy(fname, acceptedCodecs);
+			transferFileToProxy.record(start, 0);
+			if (result.hasNoError()) {
+				bytesDownloaded.add(result.getWireContent().length);
+			}
+			return result;
+		} catch (RemoteException | RuntimeException e) {
+			transferFileToProxy.recordException(start);
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean hasLatestFileVersion(int proxyID, String fname) throws RemoteException {
+		long start = System.nanoTime();
+		try {
+			boolean result = delegate.hasLatestFileVersion(proxyID, fname);
+			hasLatestFileVersion.record(start, 0);
+			return result;
+		} catch (RemoteException | RuntimeException e) {
+			hasLatestFileVersion.recordException(start);
+			throw e;
+		}
+	}
+
+	@Override
+	public long getFileVersion(String fname) throws RemoteException {
+		long start = System.nanoTime();
+		try {
+			long result = delegate.getFileVersion(fname);
+			getFileVersion.record(start, 0);
+			return result;
+		} catch (RemoteException | RuntimeException e) {
+			getFileVersion.recordException(start);
+			throw e;
+		}
+	}
+
+	@Override
+	public int openFile(int proxyID, String fname) throws RemoteException {
+		long start = System.nanoTime();
+		try {
+			int result = delegate.openFile(proxyID, fname);
+			openFile.record(start, 0);
+			return result;
+		} catch (RemoteException | RuntimeException e) {
+			openFile.recordException(start);
+			throw e;
+		}
+	}
+
+	@Override
+	public String locatePeer(String fname, long version, String requester) throws RemoteException {
+		long start = System.nanoTime();
+		try {
+			String result = delegate.locatePeer(fname, version, requester);
+			locatePeer.record(start, 0);
+			return result;
+		} catch (RemoteException | RuntimeException e) {
+			locatePeer.recordException(start);
+			throw e;
+		}
+	}
+
+	@Override
+	public void reportCachedVersion(String peer, String fname, long version) throws RemoteException {
+		long start = System.nanoTime();
+		try {
+			delegate.reportCachedVersion(peer, fname, version);
+			reportCachedVersion.record(start, 0);
+		} catch (RemoteException | RuntimeException e) {
+			reportCachedVersion.recordException(start);
+			throw e;
+		}
+	}
+
+	@Override
+	public void dropCachedVersion(String peer, String fname) throws RemoteException {
+		long start = System.nanoTime();
+		try {
+			delegate.dropCachedVersion(peer, fname);
+			dropCachedVersion.record(start, 0);
+		} catch (RemoteException | RuntimeException e) {
+			dropCachedVersion.recordException(start);
+			throw e;
+		}
+	}
+
+	@Override
+	public long createFile(String fname) throws RemoteException {
+		long start = System.nanoTime();
+		try {
+			long result = delegate.createFile(fname);
+			createFile.record(start, 0);
+			return result;
+		} catch (RemoteException | RuntimeException e) {
+			createFile.recordException(start);
+			throw e;
+		}
+	}
+
+	@Override
+	public long unlinkFile(String fname) throws RemoteException {
+		long start = System.nanoTime();
+		try {
+			long result = delegate.unlinkFile(fname);
+			unlinkFile.record(start, 0);
+			return result;
+		} catch (RemoteException | RuntimeException e) {
+			unlinkFile.recordException(start);
+			throw e;
+		}
+	}
+
+	@Override
+	public long truncateFile(String fname, long length) throws RemoteException {
+		long start = System.nanoTime();
+		try {
+			long result = delegate.truncateFile(fname, length);
+			truncateFile.record(start, 0);
+			return result;
+		} catch (RemoteException | RuntimeException e) {
+			truncateFile.recordException(start);
+			throw e;
+		}
+	}
+
+	@Override
+	public long migrateFileFromProxy(FileTransferInfo fileTransInfo) throws RemoteException {
+		long start = System.nanoTime();
+		try {
+			long result = delegate.migrateFileFromProxy(fileTransInfo);
+			migrateFileFromProxy.record(start, 0);
+			if (fileTransInfo.hasNoError()) {
+				bytesUploaded.add(fileTransInfo.getWireContent().length);
+			}
+			return result;
+		} catch (RemoteException | RuntimeException e) {
+			migrateFileFromProxy.recordException(start);
+			throw e;
+		}
+	}
+
+}
@@ -0,0 +1,90 @@
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram in the style of HdrHistogram.
+ *
+ * Values (nanoseconds) are counted in log-linear buckets: every power of two
+ * is split into SUB_BUCKETS linear buckets, so any value is kept to within
+ * 1/SUB_BUCKETS of its true size over the whole range of a long, in a fixed
+ * array. Recording is a couple of atomic increments and never allocates.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) Math.max(value, 0);
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long lowestValueOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exp = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		return (SUB_BUCKETS + sub) << (exp - SUB_BUCKET_BITS);
+	}
+
+	public void record(long nanos) {
+		counts.incrementAndGet(bucketOf(nanos));
+		total.incrementAndGet();
+		sum.addAndGet(nanos);
+		long seen = max.get();
+		while (nanos > seen && !max.compareAndSet(seen, nanos)) {
+			seen = max.get();
+		}
+	}
+
+	public long getCount() {
+		return total.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = total.get();
+		return (n == 0) ? 0.0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * Value at or below which the given fraction of recorded values fall,
+	 * reported as the highest value of its bucket. Buckets are read one by
+	 * one while recording goes on, so the result is approximate under load.
+	 */
+	public long getValueAtPercentile(double fraction) {
+		long n = total.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(fraction * n));
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				long highest = (i + 1 < NUM_BUCKETS) ? lowestValueOf(i + 1) - 1 : Long.MAX_VALUE;
+				return Math.min(highest, max.get());
+			}
+		}
+		return max.get();
+	}
+
+}
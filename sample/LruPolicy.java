@@ -0,0 +1,43 @@
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Plain least-recently-used eviction.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class LruPolicy implements CachePolicy {
+
+	// least recently used first, values unused
+	private final Map<String, Boolean> order = new LinkedHashMap<>(16, 0.75f, true);
+
+	@Override
+	public void onAccess(String fname) {
+		order.get(fname);
+	}
+
+	@Override
+	public void onInsert(String fname, long size) {
+		order.put(fname, Boolean.TRUE);
+	}
+
+	@Override
+	public void onRemove(String fname) {
+		order.remove(fname);
+	}
+
+	@Override
+	public String selectVictim() {
+		Iterator<String> it = order.keySet().iterator();
+		return it.hasNext() ? it.next() : null;
+	}
+
+	@Override
+	public String getName() {
+		return POLICY_LRU;
+	}
+
+}
@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read-only memory mappings of cached files, shared by every read-only
+ * descriptor open on the same version of a file.
+ *
+ * The first descriptor to open a version maps it, later ones just take a
+ * reference, and the mapping is dropped from the table once the last of
+ * them closes. Cached version files never change, so a new version is a
+ * new file with its own mapping while earlier readers keep their view. Reads
+ * through a mapping are bounds-checked memory copies with no file handle or
+ * syscall of their own.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class MappedFiles {
+
+	/**
+	 * One shared mapping. Readers must go through read(), which works on a
+	 * private view of the buffer and is safe to call concurrently.
+	 */
+	public static class Mapping {
+
+		private final String fpath;
+		private final long version;
+		private final MappedByteBuffer buffer;
+		private int refCount;
+
+		private Mapping(String fpath, long version, MappedByteBuffer buffer) {
+			this.fpath = fpath;
+			this.version = version;
+			this.buffer = buffer;
+			this.refCount = 0;
+		}
+
+		public long size() {
+			return buffer.capacity();
+		}
+
+		/**
+		 * Copies up to buf.length bytes from position into buf. Returns the
+		 * number of bytes copied, 0 at end of file.
+		 */
+		public long read(long position, byte[] buf) {
+			if (position >= buffer.capacity()) {
+				return 0;
+			}
+			int len = (int) Math.min(buf.length, buffer.capacity() - position);
+			ByteBuffer view = buffer.duplicate();
+			view.position((int) position);
+			view.get(buf, 0, len);
+			return len;
+		}
+	}
+
+	// current mapping of each file path
+	private final Map<String, Mapping> mappings = new HashMap<>();
+
+	/**
+	 * Returns the shared mapping of fpath at version, mapping it if no one has
+	 * yet. Returns null if the file cannot be mapped, e.g. it is missing or
+	 * larger than a single mapping can hold; callers then read the file directly.
+	 */
+	public synchronized Mapping acquire(String fpath, long version) {
+
+		Mapping mapping = mappings.get(fpath);
+
+		if (mapping == null || mapping.version != version) {
+			try (RandomAccessFile raf = new RandomAccessFile(fpath, "r")) {
+				FileChannel channel = raf.getChannel();
+				long size = channel.size();
+				if (size > Integer.MAX_VALUE) {
+					return null;
+				}
+				// the mapping stays valid after the channel is closed
+				mapping = new Mapping(fpath, version, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+			} catch (IOException e) {
+				return null;
+			}
+			mappings.put(fpath, mapping);
+		}
+
+		mapping.refCount += 1;
+		return mapping;
+	}
+
+	public synchronized void release(Mapping mapping) {
+		mapping.refCount -= 1;
+		if (mapping.refCount <= 0 && mappings.get(mapping.fpath) == mapping) {
+			mappings.remove(mapping.fpath);
+		}
+	}
+
+}
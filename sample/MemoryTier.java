@@ -0,0 +1,191 @@
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded off-heap copy of small, frequently read files, sitting above the
+ * disk cache.
+ *
+ * At most one version of a name is resident and a read must name the version
+ * it expects, so a new version never sees stale bytes; writes and downloads
+ * also drop the resident copy of the name. A file is promoted once it has
+ * been read PROMOTE_THRESHOLD times (estimated by a frequency sketch), and
+ * only if it is more popular than the least recently used residents it would
+ * push out. Residents are kept in direct buffers and served with a plain
+ * memory copy.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class MemoryTier {
+
+	public static final String SIZE_PROPERTY = "memtier.size";
+	public static final String MAX_FILE_SIZE_PROPERTY = "memtier.maxFileSize";
+
+	private static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+	private static final long DEFAULT_MAX_FILE_SIZE = 64L * 1024;
+	private static final int PROMOTE_THRESHOLD = 4;
+
+	// returned by read() when the file is not resident
+	public static final long MISS = Long.MIN_VALUE;
+
+	private final long capacity;
+	private final long maxFileSize;
+	private final FrequencySketch sketch;
+
+	// least recently used first, keyed by file name
+	private final LinkedHashMap<String, Resident> residents = new LinkedHashMap<>(16, 0.75f, true);
+	private long usedBytes;
+	// bumped on every invalidation, so a load racing with a write is discarded
+	private long invalidations;
+
+	private static class Resident {
+		final long version;
+		final ByteBuffer data;
+
+		Resident(long version, ByteBuffer data) {
+			this.version = version;
+			this.data = data;
+		}
+	}
+
+	public MemoryTier(long capacity, long maxFileSize) {
+		this.capacity = capacity;
+		this.maxFileSize = maxFileSize;
+		this.sketch = new FrequencySketch((int) Math.min(1 << 16, Math.max(64, capacity / 1024)));
+	}
+
+	public static MemoryTier create() {
+		return new MemoryTier(Long.getLong(SIZE_PROPERTY, DEFAULT_CAPACITY),
+				Long.getLong(MAX_FILE_SIZE_PROPERTY, DEFAULT_MAX_FILE_SIZE));
+	}
+
+	/**
+	 * Copies up to buf.length bytes from position into buf. Returns the number
+	 * of bytes copied, 0 at end of file, or MISS if the file is not resident.
+	 */
+	public long read(String fname, long version, long position, byte[] buf) {
+
+		Resident resident;
+		synchronized (this) {
+			sketch.increment(fname);
+			resident = residents.get(fname);
+		}
+		if (resident == null || resident.version != version) {
+			return MISS;
+		}
+
+		ByteBuffer data = resident.data;
+		if (position >= data.capacity()) {
+			return 0;
+		}
+		int len = (int) Math.min(buf.length, data.capacity() - position);
+		ByteBuffer view = data.duplicate();
+		view.position((int) position);
+		view.get(buf, 0, len);
+		return len;
+	}
+
+	/**
+	 * Called after a read that missed. Loads the file into memory if it is
+	 * small and popular enough to earn a place.
+	 */
+	public void maybePromote(String fname, long version, String fpath, long size) {
+
+		if (size > maxFileSize || size > capacity) {
+			return;
+		}
+
+		long seenInvalidations;
+		synchronized (this) {
+			if (isResident(fname, version) || sketch.frequency(fname) < PROMOTE_THRESHOLD) {
+				return;
+			}
+			if (!makeRoom(fname, size)) {
+				return;
+			}
+			seenInvalidations = invalidations;
+		}
+
+		// load outside the lock, the file may be read concurrently
+		ByteBuffer data;
+		try (RandomAccessFile raf = new RandomAccessFile(fpath, "r")) {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() != size) {
+				return;
+			}
+			data = ByteBuffer.allocateDirect((int) size);
+			while (data.hasRemaining()) {
+				if (channel.read(data, data.position()) < 0) {
+					return;
+				}
+			}
+			data.flip();
+		} catch (IOException e) {
+			return;
+		}
+
+		synchronized (this) {
+			if (invalidations != seenInvalidations || isResident(fname, version) || !makeRoom(fname, size)) {
+				return;
+			}
+			invalidate(fname);
+			residents.put(fname, new Resident(version, data));
+			usedBytes += size;
+		}
+	}
+
+	private boolean isResident(String fname, long version) {
+		Resident resident = residents.get(fname);
+		return resident != null && resident.version == version;
+	}
+
+	// demotes less popular residents until size fits; fails if a hotter one is in the way
+	private boolean makeRoom(String fname, long size) {
+		int freq = sketch.frequency(fname);
+		List<String> victims = new ArrayList<>();
+		long freed = 0;
+		Iterator<Map.Entry<String, Resident>> it = residents.entrySet().iterator();
+		while (usedBytes - freed + size > capacity) {
+			if (!it.hasNext()) {
+				return false;
+			}
+			Map.Entry<String, Resident> victim = it.next();
+			// an old version of the same file always makes way
+			boolean sameFile = victim.getKey().equals(fname);
+			if (!sameFile && sketch.frequency(victim.getKey()) >= freq) {
+				return false;
+			}
+			victims.add(victim.getKey());
+			freed += victim.getValue().data.capacity();
+		}
+		for (String victim : victims) {
+			residents.remove(victim);
+		}
+		usedBytes -= freed;
+		return true;
+	}
+
+	/**
+	 * Drops the resident copy of fname, whatever its version.
+	 */
+	public synchronized void invalidate(String fname) {
+		invalidations += 1;
+		Resident resident = residents.remove(fname);
+		if (resident != null) {
+			usedBytes -= resident.data.capacity();
+		}
+	}
+
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+}
@@ -0,0 +1,257 @@
+import java.io.InterruptedIOException;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * The proxy's log of namespace changes (create, unlink) on their way to
+ * the servers.
+ *
+ * The proxy applies a change to its own cache first and appends it here, so
+ * the client never waits on the network for it. The log sends the changes
+ * in the background: changes to one path are applied strictly in the order
+ * they were made, one at a time, while changes to different paths are in
+ * flight together, pipelined on the servers' connections. A path with
+ * changes still pending is newer on the proxy than on its server: a lookup
+ * on the server awaits the path first, and an upload awaits any unlink
+ * ahead of it.
+ *
+ * While the ring is being rebalanced, an unlink is also sent to the path's
+ * previous owner, so a copy not yet migrated cannot be moved back later.
+ *
+ * A change is never dropped. One that fails to reach its server is retried,
+ * from RETRY_DELAY_MS backing off to MAX_RETRY_DELAY_MS, until it is applied
+ * or the proxy exits; the shutdown drain keeps retrying too. One the server
+ * refuses cannot be applied, so it is recorded instead and the client's next
+ * operation on the path fails (see takeRefused).
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class MetadataLog {
+
+	public static final String SENDERS_PROPERTY = "metadata.senders";
+
+	private static final int DEFAULT_SENDERS = 8;
+	private static final long RETRY_DELAY_MS = 100;
+	private static final long MAX_RETRY_DELAY_MS = 1000;
+
+	public enum Kind {
+		CREATE,
+		UNLINK
+	}
+
+	private static class Change {
+		final Kind kind;
+		final String fname;
+
+		Change(Kind kind, String fname) {
+			this.kind = kind;
+			this.fname = fname;
+		}
+	}
+
+	private final Function<String, ServerInterface> serverFor;
+	// the server that owned a path before the ring changed, null if none or the same
+	private final Function<String, ServerInterface> previousOwnerFor;
+	private final ScheduledExecutorService senders;
+
+	// changes not yet applied by the server, by path, the head is in flight
+	private final Map<String, ArrayDeque<Change>> pending = new HashMap<>();
+	private int numPending;
+	private long retries;
+	// paths with a change the server refused, and why, until a client hears of it
+	private final Map<String, String> refused = new HashMap<>();
+	private long numRefused;
+
+	public MetadataLog(Function<String, ServerInterface> serverFor,
+			Function<String, ServerInterface> previousOwnerFor, int numSenders) {
+		this.serverFor = serverFor;
+		this.previousOwnerFor = previousOwnerFor;
+		this.senders = Executors.newScheduledThreadPool(Math.max(1, numSenders), r -> {
+			Thread t = new Thread(r, "metadata-log-sender");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	public static MetadataLog create(Function<String, ServerInterface> serverFor,
+			Function<String, ServerInterface> previousOwnerFor) {
+		return new MetadataLog(serverFor, previousOwnerFor, Integer.getInteger(SENDERS_PROPERTY, DEFAULT_SENDERS));
+	}
+
+	public void create(String fname) {
+		append(new Change(Kind.CREATE, fname));
+	}
+
+	public void unlink(String fname) {
+		append(new Change(Kind.UNLINK, fname));
+	}
+
+	private synchronized void append(Change change) {
+		ArrayDeque<Change> queue = pending.computeIfAbsent(change.fname, k -> new ArrayDeque<>());
+		queue.add(change);
+		numPending += 1;
+		// otherwise it is sent when the change ahead of it completes
+		if (queue.size() == 1) {
+			senders.execute(() -> send(change, RETRY_DELAY_MS));
+		}
+	}
+
+	// retryDelayMs is how long to wait if this attempt fails to reach the server
+	private void send(Change change, long retryDelayMs) {
+		try {
+			apply(change);
+		} catch (ServerException e) {
+			System.err.println("Server refused " + change.kind + " of " + change.fname + " : " + e.getMessage());
+			synchronized (this) {
+				refused.put(change.fname, e.getMessage());
+				numRefused += 1;
+			}
+		} catch (RemoteException e) {
+			synchronized (this) {
+				if (retryDelayMs == RETRY_DELAY_MS) {
+					System.err.println("Retrying " + change.kind + " of " + change.fname + " : " + e.getMessage());
+				}
+				retries += 1;
+			}
+			long nextDelayMs = Math.min(retryDelayMs * 2, MAX_RETRY_DELAY_MS);
+			senders.schedule(() -> send(change, nextDelayMs), retryDelayMs, TimeUnit.MILLISECONDS);
+			return;
+		}
+		completed(change);
+	}
+
+	private void apply(Change change) throws RemoteException {
+		ServerInterface server = serverFor.apply(change.fname);
+		switch (change.kind) {
+		case CREATE:
+			server.createFile(change.fname);
+			break;
+		case UNLINK:
+			server.unlinkFile(change.fname);
+			// a retry after this fails unlinks the new owner again, which is harmless
+			ServerInterface previous = previousOwnerFor.apply(change.fname);
+			if (previous != null) {
+				previous.unlinkFile(change.fname);
+			}
+			break;
+		}
+	}
+
+	private synchronized void completed(Change change) {
+		ArrayDeque<Change> queue = pending.get(change.fname);
+		queue.poll();
+		numPending -= 1;
+		Change next = queue.peek();
+		if (next != null) {
+			senders.execute(() -> send(next, RETRY_DELAY_MS));
+		} else {
+			pending.remove(change.fname);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Whether fname has changes the server has not applied yet.
+	 */
+	public synchronized boolean hasPending(String fname) {
+		return pending.containsKey(fname);
+	}
+
+	/**
+	 * Waits until the server has applied every change made to fname so far.
+	 */
+	public synchronized void await(String fname) throws InterruptedIOException {
+		try {
+			while (pending.containsKey(fname)) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for changes to " + fname);
+		}
+	}
+
+	/**
+	 * Waits until no unlink of fname is pending, so content uploaded next
+	 * cannot be undone by one. A pending create may be
+	 * overtaken, the server ignores the create of a file that exists.
+	 */
+	public synchronized void awaitRemovals(String fname) throws InterruptedIOException {
+		try {
+			while (hasRemoval(pending.get(fname))) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for changes to " + fname);
+		}
+	}
+
+	private static boolean hasRemoval(ArrayDeque<Change> queue) {
+		if (queue == null) {
+			return false;
+		}
+		for (Change change : queue) {
+			if (change.kind == Kind.UNLINK) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether the server refused a change made to fname since the last call,
+	 * forgetting it. If so, the proxy's view of fname is wrong and has to be
+	 * looked up again.
+	 */
+	public synchronized boolean takeRefused(String fname) {
+		return !refused.isEmpty() && refused.remove(fname) != null;
+	}
+
+	/**
+	 * Waits up to timeoutMs for every pending change to be applied, while
+	 * failed ones keep being retried. Returns whether the log is empty.
+	 */
+	public synchronized boolean drain(long timeoutMs) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		try {
+			long remaining;
+			while (!pending.isEmpty() && (remaining = deadline - System.nanoTime()) > 0) {
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return pending.isEmpty();
+	}
+
+	public synchronized int getPending() {
+		return numPending;
+	}
+
+	/**
+	 * Paths with changes still pending, for reporting what an exit leaves unsent.
+	 */
+	public synchronized List<String> getPendingPaths() {
+		return new ArrayList<>(pending.keySet());
+	}
+
+	public synchronized long getRetries() {
+		return retries;
+	}
+
+	public synchronized long getRefused() {
+		return numRefused;
+	}
+
+}
@@ -0,0 +1,258 @@
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Counters, gauges and per-operation latency histograms of a Proxy or Server.
+ *
+ * Hot paths keep a reference to their Op or counter and record into it
+ * without locking or allocating. The whole set is readable as a flat map of
+ * name to value, published as JMX attributes and printed every
+ * DUMP_INTERVAL_PROPERTY seconds.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class Metrics implements DynamicMBean {
+
+	public static final String DUMP_INTERVAL_PROPERTY = "metrics.dumpIntervalSec";
+	private static final long DEFAULT_DUMP_INTERVAL_SEC = 60;
+
+	// error codes are recorded as positive slots, errno values fit well below this
+	private static final int MAX_ERROR_CODE = 127;
+	// slot for calls that failed with an exception rather than an error code
+	public static final int EXCEPTION = 0;
+	private static final String[] ERROR_NAMES = errorNames();
+
+	private final Map<String, Op> ops = new ConcurrentHashMap<>();
+	private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+	private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+	/**
+	 * Latency and error counts of one operation.
+	 */
+	public static class Op {
+		private final String name;
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final AtomicLongArray errors = new AtomicLongArray(MAX_ERROR_CODE + 1);
+
+		Op(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Records a call that started at startNanos and returned result;
+		 * a negative result is counted as that error code. The call is also a
+		 * span of the thread's trace, if one is running.
+		 */
+		public void record(long startNanos, long result) {
+			Trace.span(name, startNanos);
+			latency.record(System.nanoTime() - startNanos);
+			if (result < 0) {
+				errors.incrementAndGet((int) Math.min(-result, MAX_ERROR_CODE));
+			}
+		}
+
+		public void recordException(long startNanos) {
+			Trace.span(name, startNanos);
+			latency.record(System.nanoTime() - startNanos);
+			errors.incrementAndGet(EXCEPTION);
+		}
+
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+	}
+
+	// names of the FileHandling.Errors codes, where that class is on the classpath
+	private static String[] errorNames() {
+		String[] names = new String[MAX_ERROR_CODE + 1];
+		names[EXCEPTION] = "exception";
+		try {
+			for (Field f : Class.forName("FileHandling$Errors").getFields()) {
+				if (Modifier.isStatic(f.getModifiers()) && f.getType() == int.class) {
+					int slot = -f.getInt(null);
+					if (slot > 0 && slot <= MAX_ERROR_CODE) {
+						names[slot] = f.getName();
+					}
+				}
+			}
+		} catch (ReflectiveOperationException | LinkageError e) {
+			// the Server runs without the client library
+		}
+		for (int i = 1; i <= MAX_ERROR_CODE; i++) {
+			if (names[i] == null) {
+				names[i] = "E" + i;
+			}
+		}
+		return names;
+	}
+
+	public Op op(String name) {
+		return ops.computeIfAbsent(name, Op::new);
+	}
+
+	public LongAdder counter(String name) {
+		return counters.computeIfAbsent(name, k -> new LongAdder());
+	}
+
+	public void gauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+
+	/**
+	 * Current value of every metric, sorted by name. Operations that were
+	 * never called are left out.
+	 */
+	public Map<String, Number> snapshot() {
+
+		Map<String, Number> values = new TreeMap<>();
+		for (Map.Entry<String, Op> e : ops.entrySet()) {
+			String name = e.getKey();
+			LatencyHistogram h = e.getValue().latency;
+			if (h.getCount() == 0) {
+				continue;
+			}
+			values.put(name + ".count", h.getCount());
+			values.put(name + ".meanMicros", h.getMean() / 1000.0);
+			values.put(name + ".p50Micros", h.getValueAtPercentile(0.50) / 1000);
+			values.put(name + ".p99Micros", h.getValueAtPercentile(0.99) / 1000);
+			values.put(name + ".p999Micros", h.getValueAtPercentile(0.999) / 1000);
+			values.put(name + ".maxMicros", h.getMax() / 1000);
+			AtomicLongArray errors = e.getValue().errors;
+			for (int i = 0; i <= MAX_ERROR_CODE; i++) {
+				long n = errors.get(i);
+				if (n != 0) {
+					values.put(name + ".errors." + ERROR_NAMES[i], n);
+				}
+			}
+		}
+		for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+			values.put(e.getKey(), e.getValue().sum());
+		}
+		for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+			values.put(e.getKey(), e.getValue().getAsLong());
+		}
+		return values;
+	}
+
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Number> e : snapshot().entrySet()) {
+			Number v = e.getValue();
+			sb.append(e.getKey()).append(' ');
+			sb.append(v instanceof Double ? String.format("%.1f", v.doubleValue()) : v.toString());
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Publishes the metrics as an MBean and starts the periodic dump to out.
+	 */
+	public void start(String objectName, PrintStream out) {
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(objectName));
+		} catch (Exception e) {
+			System.err.println("Failed to register metrics MBean : " + e.getMessage());
+		}
+
+		long interval = Long.getLong(DUMP_INTERVAL_PROPERTY, DEFAULT_DUMP_INTERVAL_SEC);
+		if (interval <= 0) {
+			return;
+		}
+		Thread t = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(interval * 1000);
+				} catch (InterruptedException e) {
+					return;
+				}
+				out.print("--- metrics ---\n" + report());
+				out.flush();
+			}
+		}, "metrics-dump");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/*
+	 * DynamicMBean, one read-only attribute per metric
+	 */
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Number value = snapshot().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Number> values = snapshot();
+		AttributeList list = new AttributeList();
+		for (String name : attributes) {
+			Number value = values.get(name);
+			if (value != null) {
+				list.add(new Attribute(name, value));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read-only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		if (actionName.equals("report")) {
+			return report();
+		}
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<>();
+		for (Map.Entry<String, Number> e : snapshot().entrySet()) {
+			attributes.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(),
+					e.getKey(), true, false, false));
+		}
+		MBeanOperationInfo report = new MBeanOperationInfo("report", "All metrics as text",
+				null, String.class.getName(), MBeanOperationInfo.INFO);
+		return new MBeanInfo(getClass().getName(), "Proxy and Server metrics",
+				attributes.toArray(new MBeanAttributeInfo[0]), null,
+				new MBeanOperationInfo[] { report }, null);
+	}
+
+}
@@ -0,0 +1,144 @@
+
+import java.io.File;
+import java.rmi.RemoteException;
+
+/**
+ * Small server each proxy runs so other proxies can fetch files from its
+ * cache instead of from the Server.
+ *
+ * It speaks the binary transport, served by a BinaryServerListener, but only
+ * answers transferFileToProxy and getFileVersion, from the cache directory.
+ * A file that is no longer cached comes back as FILE_NOT_FOUND and the
+ * asking proxy falls back to the Server.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class PeerEndpoint implements ServerInterface {
+
+	private final Cache cache;
+
+	public PeerEndpoint(Cache cache) {
+		this.cache = cache;
+	}
+
+	@Override
+	public FileTransferInfo transferFileToProxy(String fname, int acceptedCodecs) throws RemoteException {
+
+		CacheEntry entry = cache.peekEntry(fname);
+		if (entry == null) {
+			return notCached(fname);
+		}
+
+		// keep the version file from being deleted while it is read
+		CacheStore store = cache.getStore();
+		String fpath = store.pathFor(entry);
+		store.acquire(fpath);
+		try {
+			FileTransferInfo fileTransInfo = new FileTransfer(fname, new File(fpath));
+			if (!fileTransInfo.hasNoError()) {
+				return notCached(fname);
+			}
+			fileTransInfo.encode(TransferCodec.choose(fname, fileTransInfo.getFileContent(), acceptedCodecs));
+			fileTransInfo.setVersion(entry.getVersion());
+			return fileTransInfo;
+		} finally {
+			store.release(fpath);
+		}
+	}
+
+	private static FileTransferInfo notCached(String fname) {
+		return new FileTransfer(fname, 0, TransferCodec.NONE, null,
+				FileTransferError.FILE_NOT_FOUND, "Not cached on this peer");
+	}
+
+	@Override
+	public FileTransferInfo transferFileToProxy(String fname) throws RemoteException {
+		return transferFileToProxy(fname, TransferCodec.ACCEPT_NONE);
+	}
+
+	@Override
+	public long getFileVersion(String fname) throws RemoteException {
+		CacheEntry entry = cache.peekEntry(fname);
+		return (entry == null) ? VERSION_MISSING : entry.getVersion();
+	}
+
+	/*
+	 * The rest of ServerInterface belongs to the Server only
+	 */
+
+	private static RemoteException notServed() {
+		return new RemoteException("Not served by a peer");
+	}
+
+	@Override
+	public String returnString() throws RemoteException {
+		throw notServed();
+	}
+
+	@Override
+	public int returnInt() throws RemoteException {
+		throw notServed();
+	}
+
+	@Override
+	public boolean isClientProxy(int clientID) throws RemoteException {
+		throw notServed();
+	}
+
+	@Override
+	public int registerProxy() throws RemoteException {
+		throw notServed();
+	}
+
+	@Override
+	public long updateFileFromProxy(FileTransferInfo fileTransInfo) throws RemoteException {
+		throw notServed();
+	}
+
+	@Override
+	public boolean hasLatestFileVersion(int proxyID, String fname) throws RemoteException {
+		throw notServed();
+	}
+
+	@Override
+	public int openFile(int proxyID, String fname) throws RemoteException {
+		throw notServed();
+	}
+
+	@Override
+	public String locatePeer(String fname, long version, String requester) throws RemoteException {
+		throw notServed();
+	}
+
+	@Override
+	public void reportCachedVersion(String peer, String fname, long version) throws RemoteException {
+		throw notServed();
+	}
+
+	@Override
+	public void dropCachedVersion(String peer, String fname) throws RemoteException {
+		throw notServed();
+	}
+
+	@Override
+	public long createFile(String fname) throws RemoteException {
+		throw notServed();
+	}
+
+	@Override
+	public long unlinkFile(String fname) throws RemoteException {
+		throw notServed();
+	}
+
+	@Override
+	public long truncateFile(String fname, long length) throws RemoteException {
+		throw notServed();
+	}
+
+	@Override
+	public long migrateFileFromProxy(FileTransferInfo fileTransInfo) throws RemoteException {
+		throw notServed();
+	}
+
+}
@@ -3,20 +3,58 @@
  * @author YanningMao <yanningm@andrew.cmu.edu>
  */
 import java.io.*;
-import java.rmi.Naming;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 class Proxy {
 
 	private static final int NUM_PROXY_INPUT_ARGS = 4;
-	private static final int MAX_FILE_NUM = 10^8;
+	private static final int MAX_FILE_NUM = 100000000;
+	// version of a file created on this proxy and not yet committed
+	private static final long LOCAL_VERSION = 0;
+	// how long a file found missing on the server is trusted to stay missing
+	private static final String NEGATIVE_TTL_PROPERTY = "negcache.ttl.ms";
+	private static final long DEFAULT_NEGATIVE_TTL_MS = 1000;
+	// how long an exiting proxy waits for its metadata log to reach the servers
+	private static final long SHUTDOWN_DRAIN_MS = 5000;
 	
-	// the server that the proxy communicates with
-	private static ServerInterface server;
+	// the servers that the proxy communicates with, each owns part of the namespace
+	private static ServerRing servers;
+	// the ring before servers were added, paths not yet moved are fetched from it
+	private static ServerRing previousServers;
+	private static final String PREVIOUS_SERVERS_PROPERTY = "servers.previous";
+	
+	// host:port other proxies fetch our cached files from, null if disabled
+	private static String peerAddress;
+	// latency, error and traffic counters, see Metrics
+	private static Metrics metrics;
+	// orders and limits transfers with the servers
+	private static TransferScheduler transfers;
+	// creates and unlinks applied here and still on their way to the servers
+	private static MetadataLog metadataLog;
+	// connections to the peers we fetched from, by host:port
+	private static Map<String, BinaryServerStub> peers;
+	// tells the servers which versions we hold, off the download path
+	private static ExecutorService peerReports;
+	// port of the PeerEndpoint, 0 picks a free one; disabled unless set
+	private static final String PEER_PORT_PROPERTY = "peer.port";
+	// address the PeerEndpoint listens on and is advertised at
+	private static final String PEER_HOST_PROPERTY = "peer.host";
+	// a peer slower than this is given up on and the server asked instead
+	private static final String PEER_TIMEOUT_PROPERTY = "peer.timeoutMs";
+	private static final long DEFAULT_PEER_TIMEOUT_MS = 5000;
 	
 	// command line arguments
 	private static String serverIP;
@@ -27,58 +65,441 @@ class Proxy {
 	private static Integer curr_max_fd;
 	
 	private static Cache proxyCache;
+	// in-memory copies of small hot files, above the disk cache
+	private static MemoryTier memoryTier;
+	// mappings shared by all read-only descriptors of a file version
+	private static MappedFiles mappedFiles;
+	// metadata of every path opened, shared by its descriptors
+	private static InodeTable inodes;
+	private static long negativeTtlNanos;
 	private static List<Integer> unused_fds;
 	private static Map<Integer, FileOpenInfo> opened_files;
 	
 	private final int proxyID;
 	
-	public Proxy() throws RemoteException {
+	public Proxy(ServerInterface server) throws RemoteException {
 		proxyID = server.registerProxy();
 	}
 	
 	public static void init() {
-		proxyCache = new Cache();
-		opened_files = new HashMap<>();
+		// pick up whatever a previous run left in the cache directory
+		proxyCache = Cache.load(cacheDir, cacheSize, CachePolicy.create(cacheSize));
+		memoryTier = MemoryTier.create();
+		mappedFiles = new MappedFiles();
+		inodes = InodeTable.create(Proxy::retirePlaceholder);
+		negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(
+				Long.getLong(NEGATIVE_TTL_PROPERTY, DEFAULT_NEGATIVE_TTL_MS));
+		opened_files = new ConcurrentHashMap<>();
+		peers = new ConcurrentHashMap<>();
+		peerReports = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "peer-reports");
+			t.setDaemon(true);
+			return t;
+		});
+		transfers = TransferScheduler.create();
+		metadataLog = MetadataLog.create(fname -> servers.serverFor(fname), Proxy::previousOwnerFor);
+		metrics = new Metrics();
+		registerGauges();
 		unused_fds = new ArrayList<>();
 		curr_max_fd = 0;
 	}
 	
-	private static String getFilePath(String fname) {
-		assert(fname != null);
-		return cacheDir + "/" + fname;
+	private static void registerGauges() {
+		metrics.gauge("cache.hits", () -> proxyCache.getStats().getHits());
+		metrics.gauge("cache.misses", () -> proxyCache.getStats().getMisses());
+		metrics.gauge("cache.insertions", () -> proxyCache.getStats().getInsertions());
+		metrics.gauge("cache.evictions", () -> proxyCache.getStats().getEvictions());
+		metrics.gauge("cache.evictedBytes", () -> proxyCache.getStats().getEvictedBytes());
+		metrics.gauge("cache.usedBytes", () -> proxyCache.getUsedBytes());
+		metrics.gauge("memtier.usedBytes", () -> memoryTier.getUsedBytes());
+		metrics.gauge("inodes", () -> inodes.size());
+		metrics.gauge("fds.open", () -> opened_files.size());
+		metrics.gauge("transfers.inFlight", () -> transfers.getActiveTotal());
+		metrics.gauge("metadata.pending", () -> metadataLog.getPending());
+		metrics.gauge("metadata.retries", () -> metadataLog.getRetries());
+		metrics.gauge("metadata.refused", () -> metadataLog.getRefused());
 	}
 	
-	// TODO Need to check if transfer succeeded when opening. That's why I return the object here.
-	private static FileTransferInfo downloadFileFromServer(String fname) throws RemoteException {
-		assert(fname != null && fname.length() > 0);
+	/**
+	 * Starts the PeerEndpoint serving this proxy's cache to other proxies.
+	 */
+	private static void startPeerEndpoint() throws IOException {
+		
+		int peerPort = Integer.getInteger(PEER_PORT_PROPERTY, -1);
+		if (peerPort < 0) {
+			return;
+		}
+		// the endpoint is unauthenticated, so listen only where we advertise it
+		String host = System.getProperty(PEER_HOST_PROPERTY, InetAddress.getLocalHost().getHostAddress());
+		BinaryServerListener listener = new BinaryServerListener(
+				new InstrumentedServer(new PeerEndpoint(proxyCache), metrics, "peer.served"), host, peerPort, "peer");
+		listener.start();
+		peerAddress = host + ":" + listener.getPort();
+	}
+	
+	/**
+	 * Downloads the given version of fname into the cache, from a peer proxy
+	 * that holds it if the server knows one, otherwise from the server. Once
+	 * installed, the file is offered to other proxies in turn. Returns the
+	 * new entry with its version file pinned, see installDownload.
+	 */
+	private static CacheEntry downloadFile(String fname, long version,
+			TransferScheduler.Priority priority, long sizeHint) throws IOException {
+		
+		ServerInterface server = servers.serverFor(fname);
+		CacheEntry entry = transfers.run(servers.ownerOf(fname), priority, sizeHint, () -> {
+			FileTransferInfo fromPeer = fetchFromPeer(server, fname, version);
+			return (fromPeer != null) ? installDownload(fromPeer) : downloadFileFromServer(fname);
+		});
+		
+		reportCachedVersion(fname, entry.getVersion());
+		return entry;
+	}
+	
+	/**
+	 * Offers the version of fname just cached to other proxies. The report is
+	 * sent in the background; the server ignores one that arrives after a
+	 * newer version, and a lost one only means peers ask the server instead.
+	 */
+	private static void reportCachedVersion(String fname, long version) {
+		
+		if (peerAddress == null) {
+			return;
+		}
+		peerReports.execute(() -> {
+			try {
+				servers.serverFor(fname).reportCachedVersion(peerAddress, fname, version);
+			} catch (RemoteException e) {
+				metrics.counter("peer.reportFailures").increment();
+			}
+		});
+	}
+	
+	/**
+	 * Asks the server for a peer holding the version and fetches the file
+	 * from it. Returns null if there is none or the peer failed; a peer that
+	 * failed is reported so the server stops sending proxies to it.
+	 */
+	private static FileTransferInfo fetchFromPeer(ServerInterface server, String fname, long version) {
 		
-		FileTransferInfo fileTransInfo = server.transferFileToProxy(fname);
+		if (peerAddress == null) {
+			return null;
+		}
 		
+		String peer;
 		try {
+			peer = server.locatePeer(fname, version, peerAddress);
+		} catch (RemoteException e) {
+			return null;
+		}
+		if (peer == null) {
+			return null;
+		}
 		
-			// download the file to cache if file transfer succeeded
-			if (fileTransInfo.hasNoError()) {
-				String fpath = getFilePath(fname);
-				File file = new File(fpath);
-				if (file.exists()) {
-					file.delete();
-				}
-				FileOutputStream fos = new FileOutputStream(fpath);
-				fos.write(fileTransInfo.getFileContent());
-				fos.close();
+		try {
+			FileTransferInfo fileTransInfo = getPeer(peer).transferFileToProxy(fname, TransferCodec.ACCEPT_ALL);
+			if (fileTransInfo.hasNoError() && fileTransInfo.getVersion() == version) {
+				metrics.counter("peer.bytesFetched").add(fileTransInfo.getWireContent().length);
+				return fileTransInfo;
 			}
-			
-		} catch (FileNotFoundException e) {
-			fileTransInfo.setError(FileTransferError.FILE_NOT_FOUND);
-			fileTransInfo.setErrorMessage(e.getMessage());
 		} catch (IOException e) {
-			fileTransInfo.setError(FileTransferError.OTHER_IOE);
-			fileTransInfo.setErrorMessage(e.getMessage());
+			BinaryServerStub stub = peers.remove(peer);
+			if (stub != null) {
+				stub.close();
+			}
+		}
+		
+		metrics.counter("peer.failures").increment();
+		try {
+			server.dropCachedVersion(peer, fname);
+		} catch (RemoteException ignored) {
+		}
+		return null;
+	}
+	
+	private static BinaryServerStub getPeer(String peer) throws IOException {
+		
+		BinaryServerStub stub = peers.get(peer);
+		if (stub == null) {
+			int colon = peer.lastIndexOf(':');
+			stub = new BinaryServerStub(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)),
+					Long.getLong(PEER_TIMEOUT_PROPERTY, DEFAULT_PEER_TIMEOUT_MS));
+			BinaryServerStub raced = peers.putIfAbsent(peer, stub);
+			if (raced != null) {
+				stub.close();
+				stub = raced;
+			}
+		}
+		return stub;
+	}
+	
+	private static CacheEntry downloadFileFromServer(String fname) throws IOException {
+		assert(fname != null && fname.length() > 0);
+		
+		return installDownload(servers.serverFor(fname).transferFileToProxy(fname, TransferCodec.ACCEPT_ALL));
+	}
+	
+	/**
+	 * Installs a transferred file in the cache as a new version and returns
+	 * its entry. The version file is pinned (CacheStore.acquire) before the
+	 * index lock is let go, so eviction cannot delete it before the caller
+	 * uses it; the caller releases it. Throws FileNotFoundException if the
+	 * sender did not have the file.
+	 */
+	private static CacheEntry installDownload(FileTransferInfo fileTransInfo) throws IOException {
+		
+		if (fileTransInfo.getError() == FileTransferError.FILE_NOT_FOUND) {
+			throw new FileNotFoundException(fileTransInfo.getErrorMessage());
+		}
+		if (!fileTransInfo.hasNoError()) {
+			throw new IOException(fileTransInfo.getErrorMessage());
+		}
+		
+		// download the file to a temp file, decompressing straight into it,
+		// then install it as a new version
+		String fname = fileTransInfo.getFileName();
+		CacheStore store = proxyCache.getStore();
+		File tmp = store.newTempFile();
+		CheckedOutputStream cos;
+		long diskStart = Trace.start();
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			cos = new CheckedOutputStream(fos, new CRC32());
+			fileTransInfo.writeContentTo(cos);
+			cos.flush();
+			fos.getFD().sync();
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+		Trace.span("disk.write", diskStart);
+		long installStart = Trace.start();
+		store.install(tmp, fname, fileTransInfo.getVersion());
+		Trace.span("cache.install", installStart);
+		
+		// record the file only once its content is in place
+		CacheEntry entry = new CacheEntry(fname, fileTransInfo.getVersion(),
+				fileTransInfo.getFileSize(), cos.getChecksum().getValue());
+		proxyCache.putAndAcquireEntry(entry);
+		return entry;
+	}
+	
+	/**
+	 * Sends a descriptor's private copy of fname to the server, then installs
+	 * the copy in the cache as the new version. Returns the new cache entry,
+	 * or null if the copy could not be read.
+	 */
+	private static CacheEntry uploadFileToServer(String fname, File privateCopy) throws IOException {
+		assert(fname != null && fname.length() > 0);
+		
+		long diskStart = Trace.start();
+		FileTransferInfo fileTransInfo = new FileTransfer(fname, privateCopy);
+		Trace.span("disk.read", diskStart);
+		if (!fileTransInfo.hasNoError()) {
+			return null;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(fileTransInfo.getFileContent());
+		
+		// the server decodes every codec, so compress whenever it pays off
+		fileTransInfo.encode(TransferCodec.choose(fname, fileTransInfo.getFileContent(), TransferCodec.ACCEPT_ALL));
+		long version = transfers.run(servers.ownerOf(fname), TransferScheduler.Priority.UPLOAD,
+				fileTransInfo.getWireContent().length, () -> servers.serverFor(fname).updateFileFromProxy(fileTransInfo));
+		
+		try (FileOutputStream fos = new FileOutputStream(privateCopy, true)) {
+			fos.getFD().sync();
+		}
+		long installStart = Trace.start();
+		proxyCache.getStore().install(privateCopy, fname, version);
+		Trace.span("cache.install", installStart);
+		
+		CacheEntry entry = new CacheEntry(fname, version, fileTransInfo.getFileSize(), crc.getValue());
+		proxyCache.putEntry(entry);
+		reportCachedVersion(fname, version);
+		return entry;
+	}
+	
+	/**
+	 * Brings inode up to date with the server, downloading the file into the
+	 * cache if the cached copy is missing or out of date. The caller holds
+	 * the inode's lock. If the inode is then a file, its version file is
+	 * pinned and its path returned for the caller to release, so eviction,
+	 * which does not take inode locks, cannot delete it; otherwise returns
+	 * null.
+	 */
+	private static String validate(Inode inode) throws IOException {
+		
+		String fname = inode.getFileName();
+		// while our own changes to it are pending, the proxy's view is the newer one
+		if (metadataLog.hasPending(fname)) {
+			Inode.Type type = inode.getType();
+			if (type == Inode.Type.MISSING || type == Inode.Type.DIRECTORY) {
+				return null;
+			}
+			String pinned = (type == Inode.Type.FILE) ? pinCurrent(inode) : null;
+			if (pinned != null) {
+				return pinned;
+			}
+			// nothing known, or our version was evicted: the server's is ours once the changes land
+			metadataLog.await(fname);
+		}
+		
+		ServerInterface server = servers.serverFor(fname);
+		long version = server.getFileVersion(fname);
+		if (version == ServerInterface.VERSION_MISSING && previousServers != null) {
+			version = migrateFromPreviousOwner(fname, server);
+		}
+		
+		if (version == ServerInterface.VERSION_DIRECTORY) {
+			inode.update(Inode.Type.DIRECTORY, null, 0, version);
+			return null;
+		}
+		
+		if (version == ServerInterface.VERSION_MISSING) {
+			// a file created here is kept while open, until its first commit
+			if (inode.getType() == Inode.Type.FILE && inode.getVersion() == LOCAL_VERSION
+					&& inode.getOpenCount() > 0) {
+				return pinCurrent(inode);
+			}
+			retirePlaceholder(inode);
+			inode.markMissing(version, negativeTtlNanos);
+			return null;
+		}
+		
+		CacheEntry entry = (proxyCache.getEntry(fname, version) != null)
+				? proxyCache.acquireEntry(fname, version) : null;
+		if (entry == null) {
+			// the size of the version we hold is the best guess at the new one
+			CacheEntry stale = proxyCache.peekEntry(fname);
+			long sizeHint = (stale == null) ? -1 : stale.getSize();
+			try {
+				entry = downloadFile(fname, version, TransferScheduler.Priority.FETCH, sizeHint);
+			} catch (FileNotFoundException e) {
+				// removed on the server since we asked
+				inode.markMissing(ServerInterface.VERSION_MISSING, negativeTtlNanos);
+				return null;
+			}
+		}
+		retirePlaceholder(inode);
+		String path = proxyCache.getStore().pathFor(entry);
+		inode.update(Inode.Type.FILE, path, entry.getSize(), entry.getVersion());
+		return path;
+	}
+	
+	// pins the version file a file inode points to and returns its path, null if it was evicted
+	private static String pinCurrent(Inode inode) {
+		
+		// a local placeholder is not in the index, only its inode's holder retires it
+		if (inode.getVersion() == LOCAL_VERSION) {
+			proxyCache.getStore().acquire(inode.getLocalPath());
+			return inode.getLocalPath();
+		}
+		CacheEntry entry = proxyCache.acquireEntry(inode.getFileName(), inode.getVersion());
+		return (entry == null) ? null : proxyCache.getStore().pathFor(entry);
+	}
+	
+	/**
+	 * Moves fname to its new owner if it still lives on the server that owned
+	 * it before the ring changed, removing it from the old owner so it cannot
+	 * be moved again after an unlink. The new owner keeps a copy it already
+	 * has, which is newer than the moved one. Returns the file's version on
+	 * the new owner.
+	 */
+	private static long migrateFromPreviousOwner(String fname, ServerInterface owner) throws IOException {
+		
+		String newOwner = servers.ownerOf(fname);
+		String oldOwner = previousServers.ownerOf(fname);
+		if (oldOwner.equals(newOwner)) {
+			return ServerInterface.VERSION_MISSING;
+		}
+		
+		// rebalancing is background traffic, held to the prefetch bandwidth
+		ServerInterface previous = previousServers.getServer(oldOwner);
+		FileTransferInfo fileTransInfo = transfers.run(oldOwner, TransferScheduler.Priority.PREFETCH, -1,
+				() -> previous.transferFileToProxy(fname, TransferCodec.ACCEPT_ALL),
+				info -> info.hasNoError() ? info.getWireContent().length : 0);
+		if (!fileTransInfo.hasNoError()) {
+			// another proxy may have just moved it
+			return owner.getFileVersion(fname);
+		}
+		long version = transfers.run(newOwner, TransferScheduler.Priority.PREFETCH,
+				fileTransInfo.getWireContent().length, () -> owner.migrateFileFromProxy(fileTransInfo));
+		try {
+			previous.unlinkFile(fname);
+		} catch (RemoteException e) {
+			System.err.println("Failed to remove migrated " + fname + " from " + oldOwner + " : " + e.getMessage());
 		}
+		return version;
+	}
+	
+	// the server that owned fname before the ring changed, or null if none or the same
+	private static ServerInterface previousOwnerFor(String fname) {
+		
+		if (previousServers == null) {
+			return null;
+		}
+		String oldOwner = previousServers.ownerOf(fname);
+		return oldOwner.equals(servers.ownerOf(fname)) ? null : previousServers.getServer(oldOwner);
+	}
+	
+	/**
+	 * Installs an empty LOCAL_VERSION of a file created on this proxy, so
+	 * readers can open it before its first commit.
+	 */
+	private static void createLocalFile(Inode inode) throws IOException {
+		
+		CacheStore store = proxyCache.getStore();
+		File tmp = store.newTempFile();
+		String fpath = store.install(tmp, inode.getFileName(), LOCAL_VERSION);
+		inode.update(Inode.Type.FILE, fpath, 0, LOCAL_VERSION);
+	}
+	
+	/**
+	 * Retires the LOCAL_VERSION placeholder inode points to, if any. It is not
+	 * in the cache index, so nothing else retires it.
+	 */
+	private static void retirePlaceholder(Inode inode) {
 		
+		if (inode.getType() == Inode.Type.FILE && inode.getVersion() == LOCAL_VERSION && inode.getLocalPath() != null) {
+			proxyCache.getStore().retire(inode.getLocalPath());
+		}
+	}
+	
+	/**
+	 * Gives a writing descriptor its own copy of the file, so readers of the
+	 * current version never see its changes before they are committed.
+	 */
+	private static File makePrivateCopy(FileOpenInfo file_info) throws IOException {
 		
-		// return transfer result
-		return fileTransInfo;
+		File copy = proxyCache.getStore().newTempFile();
+		long diskStart = Trace.start();
+		try {
+			Files.copy(Paths.get(file_info.getLocalPath()), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			copy.delete();
+			throw e;
+		}
+		Trace.span("disk.copy", diskStart);
+		return copy;
+	}
+	
+	/**
+	 * Reuses the most recently closed descriptor number, or takes a new one.
+	 * Both the free list and the counter are guarded by unused_fds.
+	 */
+	private static int allocateFd() {
+		synchronized (unused_fds) {
+			if (!unused_fds.isEmpty()) {
+				return unused_fds.remove(unused_fds.size() - 1);
+			}
+			curr_max_fd += 1;
+			return curr_max_fd;
+		}
+	}
+	
+	private static void releaseFd(int fd) {
+		synchronized (unused_fds) {
+			unused_fds.add(fd);
+		}
 	}
 	
 	private static class FileHandler implements FileHandling {
@@ -97,40 +518,115 @@ class Proxy {
 				return Errors.EMFILE;
 			}
 			
-			// check operation type
-			File file = new File(path);
+			Inode inode = inodes.get(path);
+			FileOpenInfo file_info;
+			boolean isFile;
+			String pinned;
 			
-			if (file.exists() && (o == OpenOption.CREATE_NEW))
+			if (refused(path, inode))
 			{
-				return Errors.EEXIST;
+				return Errors.EBUSY;
 			}
-			if (!file.exists() && (o == OpenOption.READ || o == OpenOption.WRITE))
+			
+			// a probe for a file we just found missing does not go to the server
+			if (inode.isKnownMissing() && (o == OpenOption.READ || o == OpenOption.WRITE))
 			{
 				return Errors.ENOENT;
 			}
 			
-			// get file descriptor
-			int fd;
-			if (unused_fds.size() != 0)
+			long lockStart = Trace.start();
+			synchronized (inode)
 			{
-				synchronized (unused_fds)
+				Trace.span("lock.inode", lockStart);
+				
+				// dropped from the table since we looked it up, use the path's new inode
+				if (inode.isEvicted())
 				{
-					fd = unused_fds.get(0);
-					unused_fds.remove(0);
+					return open(path, o);
 				}
-			}
-			else
-			{
-				synchronized (curr_max_fd)
+				
+				// validate the path against the server, fetching it if needed;
+				// a file's version file comes back pinned for this descriptor
+				try {
+					pinned = validate(inode);
+				}
+				catch (RemoteException e) {
+					e.printStackTrace();
+					return Errors.EBUSY;
+				}
+				catch (IOException e) {
+					return handleIOException(e);
+				}
+				
+				// check operation type
+				int error = 0;
+				if (inode.getType() == Inode.Type.FILE && (o == OpenOption.CREATE_NEW))
+				{
+					error = Errors.EEXIST;
+				}
+				else if (inode.getType() == Inode.Type.MISSING && (o == OpenOption.READ || o == OpenOption.WRITE))
+				{
+					error = Errors.ENOENT;
+				}
+				else if (inode.getType() == Inode.Type.DIRECTORY && o != OpenOption.READ)
+				{
+					error = Errors.EISDIR;
+				}
+				if (error != 0)
 				{
-					curr_max_fd += 1;
-					fd = curr_max_fd;
+					if (pinned != null) {
+						proxyCache.getStore().release(pinned);
+					}
+					return error;
 				}
 				
+				// create an empty local file, the server learns of it through the log
+				if (inode.getType() == Inode.Type.MISSING)
+				{
+					try {
+						createLocalFile(inode);
+					}
+					catch (IOException e) {
+						return handleIOException(e);
+					}
+					metadataLog.create(path);
+					pinned = pinCurrent(inode);
+				}
+				
+				inode.acquire();
+				
+				// remember the version opened, its file stays pinned until close
+				file_info = new FileOpen(path, o, inode);
+				isFile = inode.getType() == Inode.Type.FILE;
+				// close goes by what was opened, the inode may have changed by then
+				file_info.setWriter(isFile && o != OpenOption.READ);
+				if (isFile && o == OpenOption.READ) {
+					// readers share the version file and its mapping
+					file_info.setMapping(mappedFiles.acquire(file_info.getLocalPath(), file_info.getVersion()));
+				}
+			}
+			
+			// a writer works on its own copy, the version file is only needed to make it
+			if (file_info.isWriter()) {
+				try {
+					file_info.setLocalPath(makePrivateCopy(file_info).getPath());
+				}
+				catch (IOException e) {
+					inode.release();
+					return handleIOException(e);
+				}
+				finally {
+					if (pinned != null) {
+						proxyCache.getStore().release(pinned);
+					}
+				}
+			}
+			else {
+				file_info.setPinnedPath(pinned);
 			}
 			
-			// add to opened files and cache
-			FileOpenInfo file_info = new FileOpen(path, o);
+			// get file descriptor
+			int fd = allocateFd();
 			opened_files.put(fd, file_info);
 			synchronized (proxyCache)
 			{
@@ -140,17 +636,6 @@ class Proxy {
 				}
 			}
 			
-			// perform open
-			/*
-			switch (o)
-			{
-			case READ:
-			case WRITE:
-			case CREATE:
-			case CREATE_NEW:
-			}
-			*/
-			
 			return fd;
 		}
 
@@ -166,30 +651,38 @@ class Proxy {
 			
 			// get the file information from opened files
 			FileOpenInfo file_info = opened_files.get(fd);
-			File file = new File(file_info.getFileName());
+			Inode inode = file_info.getInode();
 			
-			// check if the file is directory
-			if (file.isDirectory()) {
-				return Errors.EISDIR;
+			// commit what was written through this descriptor
+			int result = 0;
+			if (file_info.isWriter() && file_info.isDirty()) {
+				result = commit(file_info);
 			}
-			
-			// check if the file exists
-			if (!file.exists()) {
-				return Errors.ENOENT;
+			else if (file_info.isWriter()) {
+				new File(file_info.getLocalPath()).delete();
 			}
-
 			
 			// remove from cache if exists
 			if (proxyCache.containsFile(fd)) {
 				proxyCache.removeFile(fd);
 			}
 			
+			// drop the descriptor's references to the inode and the shared version file
+			if (file_info.getMapping() != null) {
+				mappedFiles.release(file_info.getMapping());
+				file_info.setMapping(null);
+			}
+			if (file_info.getPinnedPath() != null) {
+				proxyCache.getStore().release(file_info.getPinnedPath());
+			}
+			inode.release();
+			
 			// remove from opened files
 			opened_files.remove(fd);
 			// close the file
-			unused_fds.add(fd);
+			releaseFd(fd);
 
-			return 0;
+			return result;
 		}
 
 		public synchronized long write( int fd, byte[] buf ) {
@@ -204,7 +697,7 @@ class Proxy {
 			
 			// get the file information from opened files
 			FileOpenInfo file_info = opened_files.get(fd);
-			File file = new File(file_info.getFileName());
+			Inode inode = file_info.getInode();
 			
 			// check if write to the file is permitted
 			if (file_info.getOpenOption() == OpenOption.READ) {
@@ -212,24 +705,16 @@ class Proxy {
 			}
 			
 			// check if the file is not a directory
-			if (file.isDirectory()) {
+			if (inode.getType() == Inode.Type.DIRECTORY) {
 				return Errors.EISDIR;
 			}
-			
-			// check if the file exists
-			if (!file.exists()) {
-				return Errors.ENOENT;
-			}
-
 
-			// write to the file
-			FileOutputStream fos;
-			try
+			// write to the file at the descriptor's offset
+			long position = file_info.getPosition();
+			try (RandomAccessFile file_io = new RandomAccessFile(file_info.getLocalPath(), "rw"))
 			{
-				fos = new FileOutputStream(file.getName());
-				fos.write(buf);
-				fos.close();
-			     
+				file_io.seek(position);
+				file_io.write(buf);
 			}
 			catch(FileNotFoundException ex)
 			{
@@ -239,6 +724,9 @@ class Proxy {
 			{
 				return -1;
 			}
+			file_info.setPosition(position + buf.length);
+			file_info.setSize(Math.max(file_info.getSize(), position + buf.length));
+			file_info.setDirty(true);
 				
 			// add to cache is not exist
 			synchronized (proxyCache)
@@ -264,24 +752,40 @@ class Proxy {
 			
 			// get the file information from opened files
 			FileOpenInfo file_info = opened_files.get(fd);
-			File file = new File(file_info.getFileName());
+			Inode inode = file_info.getInode();
 			
 			// check if the file is not a directory
-			if (file.isDirectory()) {
+			if (inode.getType() == Inode.Type.DIRECTORY) {
 				return Errors.EISDIR;
 			}
 			
-			// check if the file exists
-			if (!file.exists()) {
-				return Errors.ENOENT;
+			// serve from memory if the file is resident; writers read their own copy
+			String fname = file_info.getFileName();
+			long position = file_info.getPosition();
+			long bytes_read = MemoryTier.MISS;
+			if (file_info.getOpenOption() == OpenOption.READ) {
+				bytes_read = memoryTier.read(fname, file_info.getVersion(), position, buf);
+			}
+			if (bytes_read != MemoryTier.MISS) {
+				file_info.setPosition(position + bytes_read);
+				return bytes_read;
 			}
 			
-			// read from the file
-			int bytes_read = 0;
-			try {
-				RandomAccessFile file_io = new RandomAccessFile(file_info.getFileName(), "r");
-				bytes_read = file_io.read(buf);
-				file_io.close();
+			// copy from the shared mapping if the descriptor has one
+			MappedFiles.Mapping mapping = file_info.getMapping();
+			if (mapping != null) {
+				bytes_read = mapping.read(position, buf);
+				file_info.setPosition(position + bytes_read);
+				memoryTier.maybePromote(fname, file_info.getVersion(), file_info.getLocalPath(), mapping.size());
+				return bytes_read;
+			}
+			
+			// read from the file at the descriptor's offset
+			bytes_read = 0;
+			try (RandomAccessFile file_io = new RandomAccessFile(file_info.getLocalPath(), "r")) {
+				file_io.seek(position);
+				bytes_read = Math.max(0, file_io.read(buf));
+				file_info.setPosition(position + bytes_read);
 			}
 			catch (IOException e) {
 				e.printStackTrace();
@@ -327,46 +831,22 @@ class Proxy {
 			
 			// get the file information from opened files
 			FileOpenInfo file_info = opened_files.get(fd);
-			File file = new File(file_info.getFileName());
+			Inode inode = file_info.getInode();
 			
 			// check if the file is not a directory
-			if (file.isDirectory()) {
+			if (inode.getType() == Inode.Type.DIRECTORY) {
 				return Errors.EISDIR;
 			}
-			
-			// check if the file exists
-			if (!file.exists()) {
-				return Errors.ENOENT;
-			}
 
-			// create file IO
-			RandomAccessFile file_io;
-			try
-			{
-				if (file_info.getOpenOption() == OpenOption.READ)
-				{
-					file_io = new RandomAccessFile(file_info.getFileName(), "r");
-				}
-				else
-				{
-					file_io = new RandomAccessFile(file_info.getFileName(), "rw");
-				}
-				
-				// calculate seek position
-				switch (o) {
-				case FROM_CURRENT:
-					pos += file_io.getFilePointer();
-					break;
-				case FROM_START:
-					break;
-				case FROM_END:
-					pos = file_io.length() + pos;
-				}
-				
-				file_io.close();
-			}
-			catch (IOException e) {
-				return handleIOException(e);
+			// calculate seek position
+			switch (o) {
+			case FROM_CURRENT:
+				pos += file_info.getPosition();
+				break;
+			case FROM_START:
+				break;
+			case FROM_END:
+				pos += file_info.getSize();
 			}
 			
 			// re-check parameter validity
@@ -375,14 +855,7 @@ class Proxy {
 			}
 			
 			// perform seek
-			try
-			{
-				file_io.seek(pos);
-			}
-			catch (IOException e)
-			{
-				return handleIOException(e);
-			}
+			file_info.setPosition(pos);
 			
 			// update the cache
 			synchronized (proxyCache) {
@@ -398,6 +871,9 @@ class Proxy {
 		 * Delete the file indicated by String path.
 		 * Returns 0 on success ,or a negative value indicating the error
 		 * that occurred (see Errors enum).
+		 * 
+		 * The file is gone from the proxy at once; the server removes it when
+		 * the unlink reaches it through the metadata log.
 		 */
 		public int unlink( String path ) {
 			
@@ -406,26 +882,130 @@ class Proxy {
 				return Errors.EINVAL;
 			}
 			
-			File file = new File(path);
-			if (!file.exists())
-			{
-				return Errors.ENOENT;
+			Inode inode = inodes.get(path);
+			if (refused(path, inode)) {
+				return Errors.EBUSY;
 			}
-			try {
-				file.delete();
+			synchronized (inode) {
+				
+				if (inode.isEvicted()) {
+					return unlink(path);
+				}
+				
+				// only a path we know nothing about is looked up, and not fetched
+				Inode.Type type = inode.getType();
+				if (type == Inode.Type.UNKNOWN || (type == Inode.Type.MISSING
+						&& !inode.isKnownMissing() && !metadataLog.hasPending(path))) {
+					try {
+						type = lookUp(path);
+					}
+					catch (RemoteException e) {
+						e.printStackTrace();
+						return Errors.EBUSY;
+					}
+					catch (IOException e) {
+						return handleIOException(e);
+					}
+				}
+				if (type == Inode.Type.MISSING)
+				{
+					inode.markMissing(ServerInterface.VERSION_MISSING, negativeTtlNanos);
+					return Errors.ENOENT;
+				}
+				if (type == Inode.Type.DIRECTORY)
+				{
+					return Errors.EISDIR;
+				}
+				
+				// open readers keep their version file until they close
+				proxyCache.removeEntry(path);
+				retirePlaceholder(inode);
+				memoryTier.invalidate(path);
+				inode.markMissing(ServerInterface.VERSION_MISSING, negativeTtlNanos);
+				metadataLog.unlink(path);
 				return 0;
 			}
-			catch (SecurityException e)
-			{
-				return Errors.EPERM;
+			
+		}
+		
+		/**
+		 * Whether the server refused a create or unlink this proxy
+		 * made to path. The proxy's view of path is dropped so the next
+		 * operation looks it up again, and the caller fails this one.
+		 */
+		private static boolean refused(String path, Inode inode) {
+			
+			if (!metadataLog.takeRefused(path)) {
+				return false;
+			}
+			synchronized (inode) {
+				inode.invalidate();
 			}
+			return true;
+		}
+		
+		// what the server holds at path, once our own pending changes to it are applied
+		private static Inode.Type lookUp(String path) throws IOException {
 			
+			metadataLog.await(path);
+			ServerInterface server = servers.serverFor(path);
+			long version = server.getFileVersion(path);
+			if (version == ServerInterface.VERSION_MISSING && previousServers != null) {
+				version = migrateFromPreviousOwner(path, server);
+			}
+			if (version == ServerInterface.VERSION_DIRECTORY) {
+				return Inode.Type.DIRECTORY;
+			}
+			return (version == ServerInterface.VERSION_MISSING) ? Inode.Type.MISSING : Inode.Type.FILE;
 		}
 
 		public void clientdone() {
 			return;
 		}
 		
+		/**
+		 * Commits a written descriptor: uploads its private copy and makes it the
+		 * current version. Returns 0 or an error code.
+		 */
+		private static int commit(FileOpenInfo file_info) {
+		
+			Inode inode = file_info.getInode();
+			File privateCopy = new File(file_info.getLocalPath());
+			synchronized (inode) {
+				try {
+					// an unlink of the same path has to land before the new content
+					metadataLog.awaitRemovals(file_info.getFileName());
+					String oldPath = inode.getLocalPath();
+					long oldVersion = inode.getVersion();
+					CacheEntry entry = uploadFileToServer(file_info.getFileName(), privateCopy);
+					if (entry == null) {
+						return Errors.ENOENT;
+					}
+					CacheStore store = proxyCache.getStore();
+					inode.update(Inode.Type.FILE, store.pathFor(entry), entry.getSize(), entry.getVersion());
+					memoryTier.invalidate(file_info.getFileName());
+				
+					// the local placeholder of a new file is not in the cache index
+					if (oldVersion == LOCAL_VERSION && oldPath != null) {
+						store.retire(oldPath);
+					}
+					return 0;
+				}
+				catch (RemoteException e) {
+					e.printStackTrace();
+					return Errors.EBUSY;
+				}
+				catch (IOException e) {
+					return handleIOException(e);
+				}
+				finally {
+					// gone if it was installed, dropped if the commit failed
+					privateCopy.delete();
+				}
+			}
+		}
+	
+		
 		private static int handleIOException(IOException e) {
 			e.printStackTrace();
 			if (e instanceof FileNotFoundException)
@@ -444,10 +1024,27 @@ class Proxy {
 	
 	private static class FileHandlingFactory implements FileHandlingMaking {
 		public FileHandling newclient() {
-			return new FileHandler();
+			return new InstrumentedFileHandling(new FileHandler(), metrics);
 		}
 	}
 
+	/**
+	 * Sets the Proxy up inside this JVM against an already connected ring,
+	 * without a peer endpoint or the RPCreceiver, for benchmarks and load
+	 * runs. Returns the factory that makes client handlers.
+	 */
+	static FileHandlingMaking startInProcess(String cacheDir, int cacheSize, ServerRing ring) {
+		Proxy.cacheDir = cacheDir;
+		Proxy.cacheSize = cacheSize;
+		init();
+		servers = ring;
+		return new FileHandlingFactory();
+	}
+	
+	static Metrics getMetrics() {
+		return metrics;
+	}
+	
 	public static void main(String[] args) {
 		
 		try {
@@ -465,9 +1062,28 @@ class Proxy {
 			// initialize the Proxy
 			init();
 			
-			// connect to Server
-			String serverName = "//" + serverIP + ":" + port + "/" + "ServerInterface";
-			server = (ServerInterface) Naming.lookup(serverName);
+			// connect to every Server, binary transport with RMI fallback;
+			// serverIP may list several host[:port] entries separated by commas
+			servers = ServerRing.connect(serverIP, port, metrics);
+			String previous = System.getProperty(PREVIOUS_SERVERS_PROPERTY);
+			if (previous != null) {
+				previousServers = ServerRing.connect(previous, port, metrics);
+			}
+			
+			// let other proxies fetch from our cache
+			startPeerEndpoint();
+			metrics.start("Proxy:type=Metrics", System.out);
+			
+			// check entries kept from the previous run, and keep the index on exit
+			proxyCache.revalidateInBackground(servers, transfers);
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				if (!metadataLog.drain(SHUTDOWN_DRAIN_MS)) {
+					System.err.println("Exiting with " + metadataLog.getPending() + " metadata changes unsent to "
+							+ metadataLog.getPendingPaths());
+				}
+				proxyCache.persist();
+				System.out.println("Cache (" + proxyCache.getPolicyName() + ") : " + proxyCache.getStats());
+			}));
 			
 			// notify the user
 			System.out.println("Proxy setup succeeded.");
@@ -481,13 +1097,15 @@ class Proxy {
 		
 		System.out.println("Testing downloadFileFromServer() ...");
 		String testFileName = "test_file.txt";
-		FileTransferInfo transFileInfo;
 		try {
-			transFileInfo = downloadFileFromServer(testFileName);
-			System.out.println("transFileInfo.error : " + transFileInfo.getError());
+			CacheEntry entry = downloadFileFromServer(testFileName);
+			System.out.println("downloaded version : " + entry.getVersion());
+			proxyCache.getStore().release(proxyCache.getStore().pathFor(entry));
 		} catch (RemoteException e) {
 			System.err.println("Server Remote Exception : " + e.getMessage());
 			e.printStackTrace();
+		} catch (IOException e) {
+			System.err.println("Download failed : " + e.getMessage());
 		}
 		
 		
@@ -1,4 +1,10 @@
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
@@ -9,6 +15,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * @author YanningMao <yanningm@andrew.cmu.edu>
@@ -27,9 +34,16 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
 	private static final long serialVersionUID = 1L;
 
 	private static final int NUM_SERVER_INPUT_ARGS = 2;
+	// transfers read without the lock this many times before taking it
+	private static final int OPTIMISTIC_READS = 3;
+	// uploads are written next to their target under these names, then renamed
+	private static final String UPLOAD_PREFIX = ".upload";
+	private static final String UPLOAD_SUFFIX = ".tmp";
 	
 	private int port;
 	private String rootDir;
+	// rootDir with links resolved, every path served must stay under it
+	private File canonicalRoot;
 	
 	private Set<Integer> proxies;
 	private int nextProxyID;
@@ -40,10 +54,23 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
 	
 	private Map<Integer, Map<String, UpdateStatus>> proxyFileVersionTracker;
 	
+	// current version of every file that has been asked about
+	private Map<String, Long> fileVersions;
+	// peers holding the current version of each file, guarded by fileVersions
+	private Map<String, List<String>> fileHolders;
+	// highest version handed out, guarded by fileVersions; a recreated file
+	// starts above it, so it never reuses a version a proxy still caches
+	private long lastVersion;
+	
 	public Server(int port, String rootDir) throws RemoteException {
 		super();
 		this.port = port;
 		this.rootDir = rootDir;
+		try {
+			this.canonicalRoot = new File(rootDir).getCanonicalFile();
+		} catch (IOException e) {
+			throw new RemoteException("Invalid root directory " + rootDir, e);
+		}
 		// initialize proxies information
 		nextProxyID = 1;
 		proxies = new HashSet<>();
@@ -53,6 +80,8 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
 		usingFDs = new HashSet<>();
 		// initialize file version information
 		proxyFileVersionTracker = new HashMap<>();
+		fileVersions = new HashMap<>();
+		fileHolders = new HashMap<>();
 	}
 	
 	public int getPort() {
@@ -174,11 +203,207 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
 	
 	@Override
 	public FileTransferInfo transferFileToProxy(String fname) throws RemoteException {
-		// TODO lock needed
-		FileTransferInfo fileTransInfo = new FileTransfer(fname, rootDir);
+		return transferFileToProxy(fname, TransferCodec.ACCEPT_NONE);
+	}
+	
+	/**
+	 * Reads the file without holding fileVersions, then checks its version
+	 * did not move meanwhile, so content is never tagged with the version
+	 * of another. After OPTIMISTIC_READS reads raced by changes, the last
+	 * one is made under the lock.
+	 */
+	@Override
+	public FileTransferInfo transferFileToProxy(String fname, int acceptedCodecs) throws RemoteException {
+		
+		File file = new File(getFilePathWithRootDir(fname));
+		FileTransferInfo fileTransInfo = null;
+		long version = 0;
+		for (int attempt = 1; fileTransInfo == null; attempt++) {
+			long diskStart = Trace.start();
+			if (attempt > OPTIMISTIC_READS) {
+				synchronized (fileVersions) {
+					version = getFileVersion(fname);
+					fileTransInfo = new FileTransfer(fname, file);
+				}
+			} else {
+				version = getFileVersion(fname);
+				fileTransInfo = new FileTransfer(fname, file);
+				if (getFileVersion(fname) != version) {
+					fileTransInfo = null;
+				}
+			}
+			Trace.span("disk.read", diskStart);
+		}
+		if (fileTransInfo.hasNoError()) {
+			fileTransInfo.encode(TransferCodec.choose(fname, fileTransInfo.getFileContent(), acceptedCodecs));
+		}
+		fileTransInfo.setVersion(version);
 		return fileTransInfo;
 	}
 	
+	/**
+	 * Versions start from the file's modification time the first time a file
+	 * is seen, so they keep increasing across server restarts, and are bumped
+	 * on every update, create and truncate from a proxy.
+	 */
+	@Override
+	public long getFileVersion(String fname) throws RemoteException {
+		
+		File file = new File(getFilePathWithRootDir(fname));
+		synchronized (fileVersions) {
+			if (file.isDirectory()) {
+				return VERSION_DIRECTORY;
+			}
+			if (!file.isFile()) {
+				fileVersions.remove(fname);
+				fileHolders.remove(fname);
+				return VERSION_MISSING;
+			}
+			Long version = fileVersions.get(fname);
+			if (version == null) {
+				version = file.lastModified();
+				fileVersions.put(fname, version);
+				lastVersion = Math.max(lastVersion, version);
+			}
+			return version;
+		}
+	}
+	
+	private long bumpFileVersion(String fname) throws RemoteException {
+		
+		File file = new File(getFilePathWithRootDir(fname));
+		synchronized (fileVersions) {
+			long version = Math.max(file.lastModified(), lastVersion + 1);
+			lastVersion = version;
+			fileVersions.put(fname, version);
+			markStale(fname);
+			return version;
+		}
+	}
+	
+	// every copy held by a peer or another proxy is now stale; the caller holds fileVersions
+	private void markStale(String fname) {
+		
+		fileHolders.remove(fname);
+		synchronized (proxyFileVersionTracker) {
+			for (Map<String, UpdateStatus> tracker : proxyFileVersionTracker.values()) {
+				tracker.replace(fname, UpdateStatus.UNUPDATED);
+			}
+		}
+	}
+	
+	/**
+	 * Creates an empty file unless it already exists. A file created by
+	 * another proxy first is left alone and its version returned.
+	 */
+	@Override
+	public long createFile(String fname) throws RemoteException {
+		
+		File file = new File(getFilePathWithRootDir(fname));
+		synchronized (fileVersions) {
+			if (file.exists()) {
+				return getFileVersion(fname);
+			}
+			file.getParentFile().mkdirs();
+			long diskStart = Trace.start();
+			try {
+				file.createNewFile();
+			} catch (IOException e) {
+				throw new RemoteException("Failed to create " + fname, e);
+			}
+			Trace.span("disk.write", diskStart);
+			return bumpFileVersion(fname);
+		}
+	}
+	
+	@Override
+	public long unlinkFile(String fname) throws RemoteException {
+		
+		File file = new File(getFilePathWithRootDir(fname));
+		synchronized (fileVersions) {
+			if (file.isDirectory()) {
+				throw new RemoteException(fname + " is a directory");
+			}
+			if (file.exists() && !file.delete()) {
+				throw new RemoteException("Failed to unlink " + fname);
+			}
+			fileVersions.remove(fname);
+			markStale(fname);
+			return VERSION_MISSING;
+		}
+	}
+	
+	@Override
+	public long truncateFile(String fname, long length) throws RemoteException {
+		
+		File file = new File(getFilePathWithRootDir(fname));
+		synchronized (fileVersions) {
+			if (!file.isFile()) {
+				return getFileVersion(fname);
+			}
+			long diskStart = Trace.start();
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(length);
+			} catch (IOException e) {
+				throw new RemoteException("Failed to truncate " + fname, e);
+			}
+			Trace.span("disk.write", diskStart);
+			return bumpFileVersion(fname);
+		}
+	}
+	
+	/**
+	 * Picks a random peer other than the requester that holds this version,
+	 * spreading a burst of misses on a popular file across its holders.
+	 */
+	@Override
+	public String locatePeer(String fname, long version, String requester) throws RemoteException {
+		
+		synchronized (fileVersions) {
+			Long current = fileVersions.get(fname);
+			List<String> holders = fileHolders.get(fname);
+			if (current == null || current != version || holders == null) {
+				return null;
+			}
+			List<String> candidates = new ArrayList<>(holders);
+			candidates.remove(requester);
+			if (candidates.isEmpty()) {
+				return null;
+			}
+			return candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+		}
+	}
+	
+	@Override
+	public void reportCachedVersion(String peer, String fname, long version) throws RemoteException {
+		
+		synchronized (fileVersions) {
+			// a report for a version that was already replaced is ignored
+			Long current = fileVersions.get(fname);
+			if (current == null || current != version) {
+				return;
+			}
+			List<String> holders = fileHolders.computeIfAbsent(fname, k -> new ArrayList<>());
+			if (!holders.contains(peer)) {
+				holders.add(peer);
+			}
+		}
+	}
+	
+	@Override
+	public void dropCachedVersion(String peer, String fname) throws RemoteException {
+		
+		synchronized (fileVersions) {
+			List<String> holders = fileHolders.get(fname);
+			if (holders != null) {
+				holders.remove(peer);
+				if (holders.isEmpty()) {
+					fileHolders.remove(fname);
+				}
+			}
+		}
+	}
+	
 	@Override
 	public int openFile(int proxyID, String fname) throws RemoteException {
 		
@@ -197,9 +422,25 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
 	}
 	*/
 	
-	public String getFilePathWithRootDir (String fpath) {
+	/**
+	 * Path of fpath under the root directory. A path that leads outside the
+	 * root, through ".." or a symbolic link, is rejected before anything
+	 * touches it.
+	 */
+	public String getFilePathWithRootDir (String fpath) throws RemoteException {
 		
-		return rootDir + "/" + fpath;
+		File file = new File(canonicalRoot, fpath);
+		File resolved;
+		try {
+			resolved = file.getCanonicalFile();
+		} catch (IOException e) {
+			throw new RemoteException("Invalid path " + fpath, e);
+		}
+		if (!resolved.toPath().startsWith(canonicalRoot.toPath())) {
+			throw new RemoteException(fpath + " is outside the root directory");
+		}
+		// the path itself, so a link inside the root is not followed on unlink
+		return file.toPath().normalize().toString();
 	}
 	
 	public static void main(String[] args) {
@@ -225,6 +466,12 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
 			Registry registry = LocateRegistry.getRegistry(port);
 			registry.bind("ServerInterface", server);
 			
+			// serve the binary transport next to the RMI registry, measuring every call
+			Metrics metrics = new Metrics();
+			new BinaryServerListener(new InstrumentedServer(server, metrics, "server"),
+					ServerConnector.getBinaryPort(port)).start();
+			metrics.start("Server:type=Metrics", System.out);
+			
 			// notify the user
 			System.out.println("Server setup succeeded.");
 			
@@ -239,9 +486,64 @@ public class Server extends UnicastRemoteObject implements ServerInterface {
 	}
 
 	@Override
-	public void updateFileFromProxy(FileTransferInfo fileTransInfo) throws RemoteException {
-		// TODO Auto-generated method stub
+	public long updateFileFromProxy(FileTransferInfo fileTransInfo) throws RemoteException {
+		return installUpload(fileTransInfo, false);
+	}
+	
+	/**
+	 * Installs a file a proxy moved here from its previous owner, unless this
+	 * server has the file already. Every write since the ring changed has
+	 * landed here, so a copy here is newer than the one being moved, e.g.
+	 * when two proxies migrate the file at once and one of them has written
+	 * it since.
+	 */
+	@Override
+	public long migrateFileFromProxy(FileTransferInfo fileTransInfo) throws RemoteException {
+		return installUpload(fileTransInfo, true);
+	}
+	
+	/**
+	 * Decodes the upload into a temp file next to the target, then renames
+	 * it into place and bumps the version together under fileVersions, so
+	 * uploads never interleave and a reader sees one whole version or the
+	 * other. With onlyIfMissing, an existing file is left alone and its
+	 * version returned.
+	 */
+	private long installUpload(FileTransferInfo fileTransInfo, boolean onlyIfMissing) throws RemoteException {
 		
+		String fname = fileTransInfo.getFileName();
+		if (!fileTransInfo.hasNoError()) {
+			return getFileVersion(fname);
+		}
+		
+		File file = new File(getFilePathWithRootDir(fname));
+		File tmp;
+		long diskStart = Trace.start();
+		try {
+			file.getParentFile().mkdirs();
+			tmp = File.createTempFile(UPLOAD_PREFIX, UPLOAD_SUFFIX, file.getParentFile());
+		} catch (IOException e) {
+			throw new RemoteException("Failed to update " + fname, e);
+		}
+		try {
+			try (FileOutputStream fos = new FileOutputStream(tmp)) {
+				fileTransInfo.writeContentTo(fos);
+			}
+			Trace.span("disk.write", diskStart);
+			synchronized (fileVersions) {
+				if (onlyIfMissing && file.exists()) {
+					return getFileVersion(fname);
+				}
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				return bumpFileVersion(fname);
+			}
+		} catch (IOException e) {
+			throw new RemoteException("Failed to update " + fname, e);
+		} finally {
+			// gone if it was renamed into place
+			tmp.delete();
+		}
 	}
 }
 
@@ -0,0 +1,50 @@
+
+import java.io.IOException;
+import java.rmi.Naming;
+
+/**
+ * Picks the transport used to reach a Server.
+ *
+ * The transport is chosen with the "transport" system property:
+ *   binary - length-prefixed binary protocol over NIO (default)
+ *   rmi    - plain Java RMI
+ * With the binary transport the Server is expected on the RMI port plus
+ * BINARY_PORT_OFFSET. If that connection cannot be made we fall back to RMI.
+ * Either way the connection goes through the WanEmulator when it is enabled.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public final class ServerConnector {
+
+	public static final String TRANSPORT_PROPERTY = "transport";
+	public static final String TRANSPORT_BINARY = "binary";
+	public static final String TRANSPORT_RMI = "rmi";
+
+	public static final int BINARY_PORT_OFFSET = 1;
+
+	private ServerConnector() {
+	}
+
+	public static int getBinaryPort(int rmiPort) {
+		return rmiPort + BINARY_PORT_OFFSET;
+	}
+
+	public static ServerInterface connect(String serverIP, int port) throws Exception {
+
+		String transport = System.getProperty(TRANSPORT_PROPERTY, TRANSPORT_BINARY);
+		WanEmulator.installRmi();
+
+		if (transport.equals(TRANSPORT_BINARY)) {
+			try {
+				return new BinaryServerStub(serverIP, getBinaryPort(port));
+			} catch (IOException e) {
+				System.err.println("Binary transport unavailable, falling back to RMI : " + e.getMessage());
+			}
+		}
+
+		String serverName = "//" + serverIP + ":" + port + "/" + "ServerInterface";
+		return (ServerInterface) Naming.lookup(serverName);
+	}
+
+}
@@ -18,14 +18,36 @@ public interface ServerInterface extends Remote {
 	public boolean isClientProxy(int clientID) throws RemoteException;
 	public int registerProxy () throws RemoteException;
 	
-	public void updateFileFromProxy(FileTransferInfo fileTransInfo) throws RemoteException;
+	// returns the new version of the file
+	public long updateFileFromProxy(FileTransferInfo fileTransInfo) throws RemoteException;
+	// installs a copy moved from the file's previous owner only if this server
+	// does not have the file yet; returns the file's version afterwards
+	public long migrateFileFromProxy(FileTransferInfo fileTransInfo) throws RemoteException;
 	public FileTransferInfo transferFileToProxy(String fname) throws RemoteException;
+	// acceptedCodecs is a mask of TransferCodec values the proxy can decode
+	public FileTransferInfo transferFileToProxy(String fname, int acceptedCodecs) throws RemoteException;
 	
 	public boolean hasLatestFileVersion(int proxyID, String fname) throws RemoteException;
+	// current version of the file, or one of the VERSION_* values below
+	public long getFileVersion(String fname) throws RemoteException;
+	public static final long VERSION_MISSING = -1;
+	public static final long VERSION_DIRECTORY = -2;
 	
 	
 	public int openFile(int proxyID, String fname) throws RemoteException;
 	
+	// peer-to-peer caching, a peer is the host:port of a proxy's PeerEndpoint;
+	// returns a peer holding this version of the file, or null to use the server
+	public String locatePeer(String fname, long version, String requester) throws RemoteException;
+	public void reportCachedVersion(String peer, String fname, long version) throws RemoteException;
+	public void dropCachedVersion(String peer, String fname) throws RemoteException;
+	
+	// namespace changes, streamed from a proxy's MetadataLog; each returns the
+	// file's version afterwards, or VERSION_MISSING
+	public long createFile(String fname) throws RemoteException;
+	public long unlinkFile(String fname) throws RemoteException;
+	public long truncateFile(String fname, long length) throws RemoteException;
+	
 	
 	
 }
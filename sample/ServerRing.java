@@ -0,0 +1,135 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Consistent-hash ring that splits the file namespace across several Servers.
+ *
+ * Every server is placed on the ring at VIRTUAL_NODES points and a path is
+ * owned by the first server point at or after the hash of the path. Adding
+ * a server thus only moves the paths that now hash to its points, about
+ * 1/n of them, and each Server keeps versions and locks for the paths it
+ * owns only.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class ServerRing {
+
+	public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+	private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	private final int virtualNodes;
+	// ring position -> server name
+	private final TreeMap<Long, String> ring = new TreeMap<>();
+	private final Map<String, ServerInterface> servers = new LinkedHashMap<>();
+
+	public ServerRing(int virtualNodes) {
+		this.virtualNodes = virtualNodes;
+	}
+
+	/**
+	 * Connects to every server in a comma separated list of host[:port]
+	 * entries; entries without a port use defaultPort.
+	 */
+	public static ServerRing connect(String serverList, int defaultPort) throws Exception {
+		return connect(serverList, defaultPort, null);
+	}
+
+	/**
+	 * Same as above, recording every call into metrics under "rpc" unless
+	 * metrics is null.
+	 */
+	public static ServerRing connect(String serverList, int defaultPort, Metrics metrics) throws Exception {
+
+		ServerRing ring = new ServerRing(DEFAULT_VIRTUAL_NODES);
+		for (String name : parseServerList(serverList, defaultPort)) {
+			int colon = name.lastIndexOf(':');
+			String host = name.substring(0, colon);
+			int port = Integer.parseInt(name.substring(colon + 1));
+			ServerInterface server = ServerConnector.connect(host, port);
+			if (metrics != null) {
+				server = new InstrumentedServer(server, metrics, "rpc");
+			}
+			ring.addServer(name, server);
+		}
+		return ring;
+	}
+
+	public static List<String> parseServerList(String serverList, int defaultPort) {
+		List<String> names = new ArrayList<>();
+		for (String entry : serverList.split(",")) {
+			entry = entry.trim();
+			if (entry.isEmpty()) {
+				continue;
+			}
+			names.add(entry.contains(":") ? entry : entry + ":" + defaultPort);
+		}
+		return names;
+	}
+
+	private static long hash(String key) {
+		byte[] digest = DIGEST.get().digest(key.getBytes(StandardCharsets.UTF_8));
+		long h = 0;
+		for (int i = 0; i < 8; i++) {
+			h = (h << 8) | (digest[i] & 0xff);
+		}
+		return h;
+	}
+
+	public synchronized void addServer(String name, ServerInterface server) {
+		servers.put(name, server);
+		for (int i = 0; i < virtualNodes; i++) {
+			ring.put(hash(name + "#" + i), name);
+		}
+	}
+
+	public synchronized void removeServer(String name) {
+		servers.remove(name);
+		for (int i = 0; i < virtualNodes; i++) {
+			ring.remove(hash(name + "#" + i), name);
+		}
+	}
+
+	/**
+	 * Name of the server that owns fname.
+	 */
+	public synchronized String ownerOf(String fname) {
+		if (ring.isEmpty()) {
+			throw new IllegalStateException("No servers on the ring");
+		}
+		SortedMap<Long, String> tail = ring.tailMap(hash(fname));
+		return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+	}
+
+	public synchronized ServerInterface serverFor(String fname) {
+		return servers.get(ownerOf(fname));
+	}
+
+	public synchronized ServerInterface getServer(String name) {
+		return servers.get(name);
+	}
+
+	public synchronized Collection<String> getServerNames() {
+		return new ArrayList<>(servers.keySet());
+	}
+
+	public synchronized int size() {
+		return servers.size();
+	}
+
+}
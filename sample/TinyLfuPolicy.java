@@ -0,0 +1,144 @@
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-aware W-TinyLFU.
+ *
+ * New files enter a small LRU window, 1% of the capacity. Files pushed out of
+ * the window become candidates for the main SLRU. When the cache needs room
+ * the oldest candidate is pitted against the oldest file in the probation
+ * segment, and whichever has the lower estimated frequency in the sketch is
+ * evicted; a winning candidate joins probation. A probation file or
+ * candidate that is hit again is promoted to the protected segment (80% of
+ * the main space). A one-off scan therefore
+ * only churns the window and the candidates, while the hot set stays put.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class TinyLfuPolicy implements CachePolicy {
+
+	private static final double WINDOW_RATIO = 0.01;
+	private static final double PROTECTED_RATIO = 0.8;
+	// rough average file size, used to size the sketch
+	private static final long ESTIMATED_FILE_SIZE = 4096;
+
+	private final FrequencySketch sketch;
+
+	// least recently used first, values are file sizes
+	private final LinkedHashMap<String, Long> window = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<String, Long> probation = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<String, Long> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+	// files that came from the window and have not won a place yet, oldest first
+	private final LinkedHashMap<String, Long> candidates = new LinkedHashMap<>();
+
+	private final long maxWindowBytes;
+	private final long maxProtectedBytes;
+	private long windowBytes;
+	private long protectedBytes;
+
+	public TinyLfuPolicy(long capacity) {
+		maxWindowBytes = Math.max(1, (long) (capacity * WINDOW_RATIO));
+		maxProtectedBytes = (long) ((capacity - maxWindowBytes) * PROTECTED_RATIO);
+		long expectedEntries = Math.min(1 << 20, capacity / ESTIMATED_FILE_SIZE);
+		sketch = new FrequencySketch((int) expectedEntries);
+	}
+
+	@Override
+	public void onAccess(String fname) {
+
+		sketch.increment(fname);
+
+		if (window.get(fname) != null || protectedSegment.get(fname) != null) {
+			return;
+		}
+
+		// a second hit in probation earns a protected place
+		Long size = probation.remove(fname);
+		if (size == null) {
+			size = candidates.remove(fname);
+		}
+		if (size != null) {
+			protectedSegment.put(fname, size);
+			protectedBytes += size;
+			while (protectedBytes > maxProtectedBytes && protectedSegment.size() > 1) {
+				Map.Entry<String, Long> demoted = first(protectedSegment);
+				protectedSegment.remove(demoted.getKey());
+				protectedBytes -= demoted.getValue();
+				probation.put(demoted.getKey(), demoted.getValue());
+			}
+		}
+	}
+
+	@Override
+	public void onInsert(String fname, long size) {
+
+		onRemove(fname);
+		window.put(fname, size);
+		windowBytes += size;
+
+		// overflow of the window moves to probation as candidates
+		while (windowBytes > maxWindowBytes && window.size() > 1) {
+			Map.Entry<String, Long> moved = first(window);
+			window.remove(moved.getKey());
+			windowBytes -= moved.getValue();
+			candidates.put(moved.getKey(), moved.getValue());
+		}
+	}
+
+	@Override
+	public void onRemove(String fname) {
+		Long size;
+		if ((size = window.remove(fname)) != null) {
+			windowBytes -= size;
+		} else if ((size = protectedSegment.remove(fname)) != null) {
+			protectedBytes -= size;
+		} else if (probation.remove(fname) == null) {
+			candidates.remove(fname);
+		}
+	}
+
+	@Override
+	public String selectVictim() {
+
+		// the admission contest: oldest candidate against oldest resident
+		String candidate = candidates.isEmpty() ? null : first(candidates).getKey();
+		String victim = probation.isEmpty() ? null : first(probation).getKey();
+
+		if (victim != null && candidate != null) {
+			if (sketch.frequency(candidate) > sketch.frequency(victim)) {
+				probation.put(candidate, candidates.remove(candidate));
+				return victim;
+			}
+			return candidate;
+		}
+		if (candidate != null) {
+			return candidate;
+		}
+		if (victim != null) {
+			return victim;
+		}
+
+		// probation is empty, fall back to the other segments
+		if (!protectedSegment.isEmpty()) {
+			return first(protectedSegment).getKey();
+		}
+		if (!window.isEmpty()) {
+			return first(window).getKey();
+		}
+		return null;
+	}
+
+	@Override
+	public String getName() {
+		return POLICY_TINYLFU;
+	}
+
+	private static Map.Entry<String, Long> first(LinkedHashMap<String, Long> segment) {
+		Iterator<Map.Entry<String, Long>> it = segment.entrySet().iterator();
+		return it.next();
+	}
+
+}
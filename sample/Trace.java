@@ -0,0 +1,174 @@
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-thread trace of the operation being served, with timed spans, and the
+ * slow-operation log it is written to.
+ *
+ * A FileHandler operation or a Server request begins a trace; the binary
+ * transport carries its id with every request, so the Server side of a call
+ * is logged under the same id as the client operation that caused it. Code
+ * on the way marks spans (lock waits, remote calls, disk I/O, cache
+ * installs) with start() and span(). An operation that takes longer than
+ * SLOW_MS_PROPERTY is written as one key=value line:
+ *   side=proxy trace=... op=open path=a.txt result=0 totalUs=5120
+ *   spans=lock.inode@0+3,rpc.getFileVersion@4+880,...
+ * where each span is its start offset and duration in microseconds.
+ *
+ * Each thread reuses one Trace, so tracing allocates nothing until an
+ * operation is logged.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public final class Trace {
+
+	public static final String SLOW_MS_PROPERTY = "trace.slowMs";
+	public static final String SLOW_LOG_PROPERTY = "trace.slowLog";
+
+	private static final long DEFAULT_SLOW_MS = 100;
+	private static final int MAX_SPANS = 64;
+
+	private static final long SLOW_NANOS = TimeUnit.MILLISECONDS.toNanos(
+			Long.getLong(SLOW_MS_PROPERTY, DEFAULT_SLOW_MS));
+	private static final PrintStream SLOW_LOG = openSlowLog();
+
+	private static final ThreadLocal<Trace> CURRENT = ThreadLocal.withInitial(Trace::new);
+
+	// nesting depth, only the outermost begin and finish count
+	private int depth;
+	private long id;
+	private String side;
+	private String op;
+	private String detail;
+	private long startNanos;
+
+	private final String[] spanNames = new String[MAX_SPANS];
+	private final long[] spanStarts = new long[MAX_SPANS];
+	private final long[] spanNanos = new long[MAX_SPANS];
+	private int numSpans;
+	private int droppedSpans;
+
+	private Trace() {
+	}
+
+	private static PrintStream openSlowLog() {
+		String path = System.getProperty(SLOW_LOG_PROPERTY);
+		if (path != null) {
+			try {
+				return new PrintStream(new FileOutputStream(path, true), true);
+			} catch (IOException e) {
+				System.err.println("Failed to open slow-op log " + path + " : " + e.getMessage());
+			}
+		}
+		return System.err;
+	}
+
+	/**
+	 * Begins a trace of op on this thread, continuing traceId if it is not 0.
+	 * Returns the start time, for spans and metrics.
+	 */
+	public static long begin(String side, String op, String detail, long traceId) {
+
+		long now = System.nanoTime();
+		Trace t = CURRENT.get();
+		if (t.depth++ > 0) {
+			return now;
+		}
+		t.id = (traceId != 0) ? traceId : newId();
+		t.side = side;
+		t.op = op;
+		t.detail = detail;
+		t.startNanos = now;
+		t.numSpans = 0;
+		t.droppedSpans = 0;
+		return now;
+	}
+
+	private static long newId() {
+		long id;
+		do {
+			id = ThreadLocalRandom.current().nextLong();
+		} while (id == 0);
+		return id;
+	}
+
+	/**
+	 * Id of the trace running on this thread, or 0 if there is none.
+	 */
+	public static long currentId() {
+		Trace t = CURRENT.get();
+		return (t.depth > 0) ? t.id : 0;
+	}
+
+	public static long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records a span from startNanos until now in the current trace, if any.
+	 */
+	public static void span(String name, long startNanos) {
+		Trace t = CURRENT.get();
+		if (t.depth == 0) {
+			return;
+		}
+		if (t.numSpans == MAX_SPANS) {
+			t.droppedSpans += 1;
+			return;
+		}
+		t.spanNames[t.numSpans] = name;
+		t.spanStarts[t.numSpans] = startNanos;
+		t.spanNanos[t.numSpans] = System.nanoTime() - startNanos;
+		t.numSpans += 1;
+	}
+
+	/**
+	 * Ends the trace begun on this thread, logging it if it was slow.
+	 */
+	public static void finish(long result) {
+
+		Trace t = CURRENT.get();
+		if (t.depth == 0 || --t.depth > 0) {
+			return;
+		}
+		long total = System.nanoTime() - t.startNanos;
+		if (total >= SLOW_NANOS) {
+			SLOW_LOG.println(t.format(result, total));
+		}
+		t.detail = null;
+		for (int i = 0; i < t.numSpans; i++) {
+			t.spanNames[i] = null;
+		}
+	}
+
+	private String format(long result, long total) {
+		StringBuilder sb = new StringBuilder(128 + numSpans * 32);
+		sb.append("ts=").append(System.currentTimeMillis());
+		sb.append(" side=").append(side);
+		sb.append(" trace=").append(String.format("%016x", id));
+		sb.append(" op=").append(op);
+		if (detail != null) {
+			sb.append(" path=").append(detail.replace(' ', '_'));
+		}
+		sb.append(" result=").append(result);
+		sb.append(" totalUs=").append(total / 1000);
+		sb.append(" spans=");
+		for (int i = 0; i < numSpans; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(spanNames[i]).append('@').append((spanStarts[i] - startNanos) / 1000)
+					.append('+').append(spanNanos[i] / 1000);
+		}
+		if (droppedSpans > 0) {
+			sb.append(" droppedSpans=").append(droppedSpans);
+		}
+		return sb.toString();
+	}
+
+}
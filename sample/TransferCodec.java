@@ -0,0 +1,130 @@
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Codecs that file content can be encoded with on the wire.
+ *
+ * The receiver of a transfer advertises the codecs it accepts as a bit mask
+ * (see mask()), and the sender picks one with choose(). Content that is not
+ * worth compressing, judged by its file type or by compressing a small sample,
+ * is always sent as NONE.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public enum TransferCodec {
+
+	NONE,
+	DEFLATE;
+
+	// mask advertised by a receiver that understands every codec
+	public static final int ACCEPT_ALL = NONE.mask() | DEFLATE.mask();
+	public static final int ACCEPT_NONE = NONE.mask();
+
+	// files smaller than this are not worth the codec overhead
+	private static final int MIN_COMPRESS_SIZE = 512;
+	// number of leading bytes compressed to estimate the ratio
+	private static final int SAMPLE_SIZE = 4096;
+	// compress only if the sample shrinks to at most this fraction
+	private static final double MAX_SAMPLE_RATIO = 0.9;
+
+	// file types that are already compressed
+	private static final String[] INCOMPRESSIBLE_SUFFIXES = {
+		".gz", ".tgz", ".zip", ".bz2", ".xz", ".zst", ".7z", ".jar",
+		".jpg", ".jpeg", ".png", ".gif", ".mp3", ".mp4", ".mkv", ".pdf"
+	};
+
+	public int mask() {
+		return 1 << ordinal();
+	}
+
+	public boolean isAcceptedBy(int acceptedCodecs) {
+		return (acceptedCodecs & mask()) != 0;
+	}
+
+	/**
+	 * Picks the codec to send the given content with.
+	 */
+	public static TransferCodec choose(String fname, byte[] content, int acceptedCodecs) {
+
+		if (!DEFLATE.isAcceptedBy(acceptedCodecs) || content == null || content.length < MIN_COMPRESS_SIZE) {
+			return NONE;
+		}
+
+		String lower = fname.toLowerCase(Locale.ROOT);
+		for (String suffix : INCOMPRESSIBLE_SUFFIXES) {
+			if (lower.endsWith(suffix)) {
+				return NONE;
+			}
+		}
+
+		// compress a sample and see if it is worth it
+		int sampleLen = Math.min(SAMPLE_SIZE, content.length);
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(content, 0, sampleLen);
+			deflater.finish();
+			byte[] scratch = new byte[sampleLen];
+			int compressedLen = 0;
+			while (!deflater.finished() && compressedLen < sampleLen) {
+				compressedLen += deflater.deflate(scratch);
+			}
+			if (!deflater.finished() || compressedLen > sampleLen * MAX_SAMPLE_RATIO) {
+				return NONE;
+			}
+		} finally {
+			deflater.end();
+		}
+
+		return DEFLATE;
+	}
+
+	public byte[] encode(byte[] content) {
+
+		if (this == NONE) {
+			return content;
+		}
+
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(content);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2 + 64);
+			byte[] chunk = new byte[8192];
+			while (!deflater.finished()) {
+				int len = deflater.deflate(chunk);
+				out.write(chunk, 0, len);
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Writes encoded content to out, decoding it on the way.
+	 */
+	public void decodeTo(byte[] encoded, OutputStream out) throws IOException {
+
+		if (this == NONE) {
+			out.write(encoded);
+			return;
+		}
+
+		Inflater inflater = new Inflater();
+		try {
+			InflaterOutputStream inflating = new InflaterOutputStream(out, inflater);
+			inflating.write(encoded);
+			inflating.finish();
+		} finally {
+			inflater.end();
+		}
+	}
+
+}
@@ -0,0 +1,219 @@
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.ToLongFunction;
+
+/**
+ * Decides when the proxy's transfers with a server may run.
+ *
+ * A transfer runs on the calling thread once admitted. Each server admits
+ * at most MAX_PER_SERVER transfers at a time, and waiting transfers are
+ * admitted by priority class (fetches for opens, then uploads, then
+ * prefetches) and, within a class, smallest first. Large and background
+ * transfers may never take the last slot, so a small open never queues
+ * behind a bulk download. A foreground transfer of unknown size, such as
+ * the first fetch of a file, may take it: most files are small, and it is
+ * admitted after every transfer of known size in its class. Prefetches
+ * are further held to BACKGROUND_BYTES_PER_SEC by a token bucket.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class TransferScheduler {
+
+	public static final String MAX_PER_SERVER_PROPERTY = "transfer.maxPerServer";
+	public static final String BACKGROUND_BYTES_PER_SEC_PROPERTY = "transfer.backgroundBytesPerSec";
+	public static final String SMALL_FILE_SIZE_PROPERTY = "transfer.smallFileSize";
+
+	private static final int DEFAULT_MAX_PER_SERVER = 4;
+	private static final long DEFAULT_BACKGROUND_BYTES_PER_SEC = 8L * 1024 * 1024;
+	private static final long DEFAULT_SMALL_FILE_SIZE = 1024 * 1024;
+
+	// in order of precedence
+	public enum Priority {
+		FETCH,
+		UPLOAD,
+		PREFETCH
+	}
+
+	public interface Transfer<T> {
+		T run() throws IOException;
+	}
+
+	private final int maxPerServer;
+	private final long backgroundBytesPerSec;
+	private final long smallFileSize;
+
+	private final Map<String, ServerSlots> slots = new HashMap<>();
+	private long nextTicket;
+
+	// background token bucket, may go negative after a large prefetch
+	private long backgroundTokens;
+	private long lastRefillNanos = System.nanoTime();
+
+	private static class Ticket implements Comparable<Ticket> {
+		final Priority priority;
+		final long size;
+		final long seq;
+		final boolean small;
+		boolean admitted;
+
+		Ticket(Priority priority, long size, long seq, boolean small) {
+			this.priority = priority;
+			this.size = size;
+			this.seq = seq;
+			this.small = small;
+		}
+
+		@Override
+		public int compareTo(Ticket other) {
+			if (priority != other.priority) {
+				return priority.compareTo(other.priority);
+			}
+			if (size != other.size) {
+				return Long.compare(size, other.size);
+			}
+			return Long.compare(seq, other.seq);
+		}
+	}
+
+	private static class ServerSlots {
+		int active;
+		final TreeSet<Ticket> waiting = new TreeSet<>();
+	}
+
+	public TransferScheduler(int maxPerServer, long backgroundBytesPerSec, long smallFileSize) {
+		this.maxPerServer = Math.max(1, maxPerServer);
+		this.backgroundBytesPerSec = backgroundBytesPerSec;
+		this.smallFileSize = smallFileSize;
+		this.backgroundTokens = backgroundBytesPerSec;
+	}
+
+	public static TransferScheduler create() {
+		return new TransferScheduler(Integer.getInteger(MAX_PER_SERVER_PROPERTY, DEFAULT_MAX_PER_SERVER),
+				Long.getLong(BACKGROUND_BYTES_PER_SEC_PROPERTY, DEFAULT_BACKGROUND_BYTES_PER_SEC),
+				Long.getLong(SMALL_FILE_SIZE_PROPERTY, DEFAULT_SMALL_FILE_SIZE));
+	}
+
+	/**
+	 * Waits for a slot on server, runs transfer on this thread and returns its
+	 * result. sizeHint is the expected number of bytes, or -1 if unknown; an
+	 * unknown size counts as small but sorts after every known size.
+	 */
+	public <T> T run(String server, Priority priority, long sizeHint, Transfer<T> transfer) throws IOException {
+		return run(server, priority, sizeHint, transfer, result -> Math.max(sizeHint, 0));
+	}
+
+	/**
+	 * Same as run, but a prefetch is charged bytesOf its result rather than
+	 * sizeHint, for transfers whose size is only known once they are done.
+	 */
+	public <T> T run(String server, Priority priority, long sizeHint, Transfer<T> transfer,
+			ToLongFunction<? super T> bytesOf) throws IOException {
+
+		long waitStart = Trace.start();
+		Ticket ticket = admit(server, priority, sizeHint);
+		Trace.span("transfer.wait", waitStart);
+		long bytes = Math.max(sizeHint, 0);
+		try {
+			T result = transfer.run();
+			bytes = bytesOf.applyAsLong(result);
+			return result;
+		} finally {
+			release(server, ticket, bytes);
+		}
+	}
+
+	private synchronized Ticket admit(String server, Priority priority, long sizeHint) throws IOException {
+
+		boolean small = priority != Priority.PREFETCH && sizeHint <= smallFileSize;
+		Ticket ticket = new Ticket(priority, (sizeHint < 0) ? Long.MAX_VALUE : sizeHint, nextTicket++, small);
+		ServerSlots s = slots.computeIfAbsent(server, k -> new ServerSlots());
+		s.waiting.add(ticket);
+		dispatch(s);
+
+		try {
+			while (!ticket.admitted) {
+				long waitMillis = 0;
+				if (ticket.priority == Priority.PREFETCH && backgroundBytesPerSec > 0 && backgroundTokens < 0) {
+					// wake up once the bucket has refilled
+					waitMillis = Math.max(1, -backgroundTokens * 1000 / backgroundBytesPerSec);
+				}
+				wait(waitMillis);
+				dispatch(s);
+			}
+		} catch (InterruptedException e) {
+			if (!s.waiting.remove(ticket)) {
+				// admitted while being interrupted, hand the slot back
+				s.active -= 1;
+				dispatch(s);
+			}
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a transfer slot");
+		}
+		return ticket;
+	}
+
+	private synchronized void release(String server, Ticket ticket, long bytes) {
+		ServerSlots s = slots.get(server);
+		s.active -= 1;
+		if (ticket.priority == Priority.PREFETCH) {
+			backgroundTokens -= bytes;
+		}
+		dispatch(s);
+	}
+
+	// admits waiting tickets in order while slots they may use are free
+	private void dispatch(ServerSlots s) {
+
+		refillBackground();
+		boolean admittedAny = false;
+		for (Ticket ticket : s.waiting) {
+			if (s.active >= maxPerServer) {
+				break;
+			}
+			// the last slot is kept for small foreground transfers
+			if (!ticket.small && s.active >= maxPerServer - 1 && maxPerServer > 1) {
+				continue;
+			}
+			if (ticket.priority == Priority.PREFETCH && backgroundBytesPerSec > 0 && backgroundTokens < 0) {
+				continue;
+			}
+			ticket.admitted = true;
+			s.active += 1;
+			admittedAny = true;
+		}
+		if (admittedAny) {
+			s.waiting.removeIf(t -> t.admitted);
+			notifyAll();
+		}
+	}
+
+	private void refillBackground() {
+		long now = System.nanoTime();
+		// the bucket holds at most a second of tokens, and this cannot overflow
+		long elapsed = Math.min(now - lastRefillNanos, 1_000_000_000L);
+		long refill = elapsed * backgroundBytesPerSec / 1_000_000_000L;
+		if (refill > 0) {
+			backgroundTokens = Math.min(backgroundBytesPerSec, backgroundTokens + refill);
+			lastRefillNanos = now;
+		}
+	}
+
+	public synchronized int getActiveTotal() {
+		int active = 0;
+		for (ServerSlots s : slots.values()) {
+			active += s.active;
+		}
+		return active;
+	}
+
+	public synchronized int getActive(String server) {
+		ServerSlots s = slots.get(server);
+		return (s == null) ? 0 : s.active;
+	}
+
+}
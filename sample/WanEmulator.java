@@ -0,0 +1,252 @@
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMISocketFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Emulates a wide-area link between a Proxy and its Servers, so caching and
+ * protocol changes can be measured on one machine.
+ *
+ * When any wan.* property is set, every connection the proxy makes, binary
+ * stub or RMI, goes through a relay on the loopback interface that shapes
+ * both directions of the stream:
+ *   wan.delayMs     one-way delay added to every packet
+ *   wan.jitterMs    extra random delay, up to this much, per packet
+ *   wan.bandwidth   bytes per second each way, 0 for unlimited, shared
+ *                   by all connections to the same server
+ *   wan.packetSize  bytes per packet, packets leave one at a time at the
+ *                   link rate (pacing), default 1448 like a TCP segment
+ * Packets are never reordered, so the stream stays a valid TCP stream.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public final class WanEmulator {
+
+	public static final String DELAY_PROPERTY = "wan.delayMs";
+	public static final String JITTER_PROPERTY = "wan.jitterMs";
+	public static final String BANDWIDTH_PROPERTY = "wan.bandwidth";
+	public static final String PACKET_SIZE_PROPERTY = "wan.packetSize";
+
+	private static final int DEFAULT_PACKET_SIZE = 1448;
+	// packets buffered per direction before the sender is held back
+	private static final int QUEUE_PACKETS = 1024;
+	// how long a relay waits for the proxy to connect to it
+	private static final int ACCEPT_TIMEOUT_MS = 10000;
+
+	private static final long DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong(DELAY_PROPERTY, 0));
+	private static final long JITTER_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong(JITTER_PROPERTY, 0));
+	private static final long BANDWIDTH = Long.getLong(BANDWIDTH_PROPERTY, 0);
+	private static final int PACKET_SIZE = Integer.getInteger(PACKET_SIZE_PROPERTY, DEFAULT_PACKET_SIZE);
+
+	private static boolean rmiInstalled;
+
+	// the emulated link to each server, by host:port and direction
+	private static final Map<String, Wire> WIRES = new ConcurrentHashMap<>();
+
+	private WanEmulator() {
+	}
+
+	public static boolean isEnabled() {
+		return DELAY_NANOS > 0 || JITTER_NANOS > 0 || BANDWIDTH > 0;
+	}
+
+	/**
+	 * Address to connect to for host:port: the server itself, or a relay to
+	 * it when emulation is on. Fails like a direct connect would if the
+	 * server cannot be reached.
+	 */
+	public static InetSocketAddress route(String host, int port) throws IOException {
+		if (!isEnabled()) {
+			return new InetSocketAddress(host, port);
+		}
+		return relay(host, port);
+	}
+
+	/**
+	 * Routes RMI connections made by this JVM through relays as well.
+	 */
+	public static synchronized void installRmi() throws IOException {
+		if (!isEnabled() || rmiInstalled) {
+			return;
+		}
+		RMISocketFactory.setSocketFactory(new RMISocketFactory() {
+			@Override
+			public Socket createSocket(String host, int port) throws IOException {
+				Socket socket = new Socket();
+				socket.connect(route(host, port));
+				return socket;
+			}
+
+			@Override
+			public ServerSocket createServerSocket(int port) throws IOException {
+				return new ServerSocket(port);
+			}
+		});
+		rmiInstalled = true;
+	}
+
+	// connects to the server now, then accepts one local connection and joins the two
+	private static InetSocketAddress relay(String host, int port) throws IOException {
+
+		Socket upstream = new Socket(host, port);
+		upstream.setTcpNoDelay(true);
+		ServerSocket listener;
+		try {
+			listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+			listener.setSoTimeout(ACCEPT_TIMEOUT_MS);
+		} catch (IOException e) {
+			closeQuietly(upstream);
+			throw e;
+		}
+		Wire up = WIRES.computeIfAbsent(host + ":" + port + "/up", k -> new Wire());
+		Wire down = WIRES.computeIfAbsent(host + ":" + port + "/down", k -> new Wire());
+
+		Thread acceptor = new Thread(() -> {
+			try (ServerSocket l = listener) {
+				Socket local = l.accept();
+				local.setTcpNoDelay(true);
+				new Link(local.getInputStream(), upstream.getOutputStream(), local, upstream, up).start("up");
+				new Link(upstream.getInputStream(), local.getOutputStream(), upstream, local, down).start("down");
+			} catch (IOException e) {
+				// includes the proxy never connecting
+				closeQuietly(upstream);
+			}
+		}, "wan-relay-" + host + ":" + port);
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		return new InetSocketAddress(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	/**
+	 * One direction of the emulated link to a server. Packets from every
+	 * connection to it leave one at a time, so they share its bandwidth.
+	 */
+	private static class Wire {
+
+		// when the wire is next free to send
+		private long nextDeparture;
+
+		// queues a packet of length bytes, returns when it has been sent
+		synchronized long send(int length) {
+			long departure = Math.max(System.nanoTime(), nextDeparture);
+			long transmit = (BANDWIDTH > 0) ? length * 1_000_000_000L / BANDWIDTH : 0;
+			nextDeparture = departure + transmit;
+			return nextDeparture;
+		}
+	}
+
+	/**
+	 * One direction of a relay. A reader cuts the stream into packets and
+	 * stamps each with the time it would arrive over the emulated link; a
+	 * writer hands each packet on at that time.
+	 */
+	private static class Link {
+
+		private static class Packet {
+			final byte[] data;
+			final long arrival;
+
+			Packet(byte[] data, long arrival) {
+				this.data = data;
+				this.arrival = arrival;
+			}
+		}
+
+		private static final byte[] END = new byte[0];
+
+		private final InputStream in;
+		private final OutputStream out;
+		private final Socket from;
+		private final Socket to;
+		private final Wire wire;
+
+		private final BlockingQueue<Packet> packets = new ArrayBlockingQueue<>(QUEUE_PACKETS);
+
+		// when the last packet arrives
+		private long lastArrival;
+
+		Link(InputStream in, OutputStream out, Socket from, Socket to, Wire wire) {
+			this.in = in;
+			this.out = out;
+			this.from = from;
+			this.to = to;
+			this.wire = wire;
+		}
+
+		void start(String direction) {
+			Thread reader = new Thread(this::read, "wan-link-" + direction + "-reader");
+			Thread writer = new Thread(this::write, "wan-link-" + direction + "-writer");
+			reader.setDaemon(true);
+			writer.setDaemon(true);
+			reader.start();
+			writer.start();
+		}
+
+		private void read() {
+			byte[] buf = new byte[PACKET_SIZE];
+			try {
+				int n;
+				while ((n = in.read(buf)) > 0) {
+					enqueue(Arrays.copyOf(buf, n));
+				}
+				enqueue(END);
+			} catch (IOException | InterruptedException e) {
+				closeQuietly(from);
+				closeQuietly(to);
+			}
+		}
+
+		// only the reader thread touches lastArrival
+		private void enqueue(byte[] data) throws InterruptedException {
+			long sent = wire.send(data.length);
+			long jitter = (JITTER_NANOS > 0) ? ThreadLocalRandom.current().nextLong(JITTER_NANOS) : 0;
+			// a packet never overtakes the one before it
+			lastArrival = Math.max(lastArrival, sent + DELAY_NANOS + jitter);
+			packets.put(new Packet(data, lastArrival));
+		}
+
+		private void write() {
+			try {
+				while (true) {
+					Packet packet = packets.take();
+					long wait;
+					while ((wait = packet.arrival - System.nanoTime()) > 0) {
+						LockSupport.parkNanos(wait);
+					}
+					if (packet.data == END) {
+						to.shutdownOutput();
+						return;
+					}
+					out.write(packet.data);
+					out.flush();
+				}
+			} catch (IOException | InterruptedException e) {
+				closeQuietly(from);
+				closeQuietly(to);
+			}
+		}
+	}
+
+}
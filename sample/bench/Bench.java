@@ -0,0 +1,250 @@
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.regex.Pattern;
+
+/**
+ * Microbenchmark harness for the proxy's hot paths, run with "make bench".
+ *
+ * Works like JMH in average-time mode: every case is set up once, warmed up
+ * for WARMUP iterations, then measured for ITERATIONS iterations of
+ * ITERATION_MS each, with every thread calling the operation in a loop.
+ * The score is the mean time per operation per thread, and the error is the
+ * standard deviation across iterations. Results of operations are folded
+ * into a sink so the JIT cannot drop the work.
+ *
+ * Arguments are an optional regex on case names; with -Dbench.baseline=file
+ * each score is also compared with the same case in an earlier run, such as
+ * bench/baseline.txt.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class Bench {
+
+	private static final int WARMUP = Integer.getInteger("bench.warmup", 3);
+	private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+	private static final long ITERATION_MS = Long.getLong("bench.iterationMs", 1000);
+	// operations between two checks of the clock
+	private static final int BATCH = 16;
+
+	private static final String FORMAT = "%-24s %-42s %7s %5s %12s %10s  %s%s%n";
+
+	public static volatile long sink;
+
+	/**
+	 * One operation under test; thread is the index of the calling thread.
+	 */
+	public interface Op {
+		long run(int thread) throws Exception;
+	}
+
+	public interface Setup {
+		Op create() throws Exception;
+	}
+
+	public interface Teardown {
+		void run() throws Exception;
+	}
+
+	private static class Case {
+		final String name;
+		final String params;
+		final int threads;
+		final Setup setup;
+		final Teardown teardown;
+
+		Case(String name, String params, int threads, Setup setup, Teardown teardown) {
+			this.name = name;
+			this.params = params;
+			this.threads = threads;
+			this.setup = setup;
+			this.teardown = teardown;
+		}
+
+		String key() {
+			return name + " " + params + " " + threads;
+		}
+	}
+
+	private final List<Case> cases = new ArrayList<>();
+
+	public void add(String name, String params, int threads, Setup setup, Teardown teardown) {
+		cases.add(new Case(name, params, threads, setup, teardown));
+	}
+
+	public void add(String name, String params, Setup setup) {
+		add(name, params, 1, setup, null);
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		Bench bench = new Bench();
+		CacheBenchmarks.register(bench);
+		FileHandlerBenchmarks.register(bench);
+		TransferBenchmarks.register(bench);
+
+		Pattern filter = Pattern.compile(args.length > 0 ? args[0] : ".*");
+		String baselineFile = System.getProperty("bench.baseline");
+		Map<String, Double> baseline = (baselineFile == null) ? new HashMap<>() : readBaseline(baselineFile);
+
+		System.out.printf(FORMAT, "Benchmark", "(params)", "Threads", "Cnt", "Score", "Error", "Units",
+				baseline.isEmpty() ? "" : "  vs baseline");
+		for (Case c : bench.cases) {
+			if (!filter.matcher(c.name).find()) {
+				continue;
+			}
+			double[] result = bench.measure(c);
+			Double base = baseline.get(c.key());
+			String delta = (base == null) ? "" : String.format("  %+.1f%%", (result[0] - base) * 100 / base);
+			System.out.printf(FORMAT, c.name, c.params, c.threads, ITERATIONS,
+					String.format("%.3f", result[0]), String.format("+- %.3f", result[1]), "ns/op", delta);
+		}
+		System.exit(0);
+	}
+
+	private double[] measure(Case c) throws Exception {
+
+		Op op = c.setup.create();
+		try {
+			for (int i = 0; i < WARMUP; i++) {
+				iteration(op, c.threads);
+			}
+			double[] scores = new double[ITERATIONS];
+			for (int i = 0; i < ITERATIONS; i++) {
+				scores[i] = iteration(op, c.threads);
+			}
+			double mean = 0;
+			for (double s : scores) {
+				mean += s;
+			}
+			mean /= scores.length;
+			double var = 0;
+			for (double s : scores) {
+				var += (s - mean) * (s - mean);
+			}
+			double stdev = (scores.length > 1) ? Math.sqrt(var / (scores.length - 1)) : 0;
+			return new double[] { mean, stdev };
+		} finally {
+			if (c.teardown != null) {
+				c.teardown.run();
+			}
+		}
+	}
+
+	// runs one iteration on all threads, returns ns per operation per thread
+	private double iteration(Op op, int threads) throws Exception {
+
+		CyclicBarrier start = new CyclicBarrier(threads);
+		long[] ops = new long[threads];
+		long[] nanos = new long[threads];
+		Exception[] failure = new Exception[1];
+		Thread[] workers = new Thread[threads];
+
+		for (int t = 0; t < threads; t++) {
+			int thread = t;
+			workers[t] = new Thread(() -> {
+				try {
+					start.await();
+					long begin = System.nanoTime();
+					long deadline = begin + ITERATION_MS * 1_000_000;
+					long count = 0;
+					long acc = 0;
+					long now;
+					do {
+						for (int i = 0; i < BATCH; i++) {
+							acc += op.run(thread);
+						}
+						count += BATCH;
+						now = System.nanoTime();
+					} while (now < deadline);
+					ops[thread] = count;
+					nanos[thread] = now - begin;
+					sink += acc;
+				} catch (Exception e) {
+					failure[0] = e;
+				}
+			}, "bench-" + t);
+			workers[t].start();
+		}
+		for (Thread w : workers) {
+			w.join();
+		}
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+
+		double total = 0;
+		for (int t = 0; t < threads; t++) {
+			total += (double) nanos[t] / ops[t];
+		}
+		return total / threads;
+	}
+
+	// reads the Score column of an earlier run, keyed by name, params and threads
+	private static Map<String, Double> readBaseline(String file) throws IOException {
+		Map<String, Double> scores = new HashMap<>();
+		try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] f = line.trim().split("\\s+");
+				if (f.length < 7 || f[0].equals("Benchmark") || f[0].startsWith("#")) {
+					continue;
+				}
+				try {
+					scores.put(f[0] + " " + f[1] + " " + f[2], Double.parseDouble(f[4]));
+				} catch (NumberFormatException e) {
+					// not a result line
+				}
+			}
+		}
+		return scores;
+	}
+
+	/**
+	 * A fresh directory under java.io.tmpdir, removed by deleteTree.
+	 */
+	public static File tempDir(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		dir.delete();
+		dir.mkdirs();
+		return dir;
+	}
+
+	public static void deleteTree(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteTree(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Cheap per-thread pseudo-random numbers, so picking a key costs no
+	 * shared state.
+	 */
+	public static final class XorShift {
+		private long state;
+
+		public XorShift(long seed) {
+			state = (seed == 0) ? 0x9E3779B97F4A7C15L : seed;
+		}
+
+		public int nextInt(int bound) {
+			state ^= state << 13;
+			state ^= state >>> 7;
+			state ^= state << 17;
+			return (int) ((state >>> 33) % bound);
+		}
+	}
+
+}
@@ -0,0 +1,109 @@
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Cache lookup and eviction cost at growing entry counts, for both policies.
+ * Each case runs on an in-memory index (journal=off), which is what the
+ * policies cost, and on one loaded from a cache directory (journal=on),
+ * which adds the journal writes a proxy pays for.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class CacheBenchmarks {
+
+	private static final int[] ENTRY_COUNTS = { 1000, 10000, 100000 };
+	private static final String[] POLICIES = { CachePolicy.POLICY_LRU, CachePolicy.POLICY_TINYLFU };
+	private static final long ENTRY_SIZE = 4096;
+
+	public static void register(Bench bench) {
+
+		for (boolean journal : new boolean[] { false, true }) {
+			for (String policy : POLICIES) {
+				for (int entries : ENTRY_COUNTS) {
+					File[] dir = new File[1];
+					bench.add("cache.lookup", params(entries, policy, journal), 1,
+							() -> lookup(dir, entries, policy, journal), () -> deleteDir(dir));
+				}
+			}
+		}
+		for (boolean journal : new boolean[] { false, true }) {
+			for (String policy : POLICIES) {
+				for (int entries : ENTRY_COUNTS) {
+					File[] dir = new File[1];
+					bench.add("cache.insertEvict", params(entries, policy, journal), 1,
+							() -> insertEvict(dir, entries, policy, journal), () -> deleteDir(dir));
+				}
+			}
+		}
+	}
+
+	private static String params(int entries, String policy, boolean journal) {
+		return "entries=" + entries + ",policy=" + policy + ",journal=" + (journal ? "on" : "off");
+	}
+
+	// a journaled cache in a fresh temp directory, or an index alone
+	private static Cache newCache(File[] dir, long capacity, String policy, boolean journal) throws IOException {
+		if (!journal) {
+			return new Cache(capacity, newPolicy(policy, capacity));
+		}
+		dir[0] = Bench.tempDir("bench-cache");
+		return Cache.load(dir[0].getPath(), capacity, newPolicy(policy, capacity));
+	}
+
+	private static void deleteDir(File[] dir) {
+		if (dir[0] != null) {
+			Bench.deleteTree(dir[0]);
+		}
+	}
+
+	private static CachePolicy newPolicy(String policy, long capacity) {
+		return policy.equals(CachePolicy.POLICY_LRU) ? new LruPolicy() : new TinyLfuPolicy(capacity);
+	}
+
+	private static String[] names(int count, String prefix) {
+		String[] names = new String[count];
+		for (int i = 0; i < count; i++) {
+			names[i] = prefix + "/file" + i + ".dat";
+		}
+		return names;
+	}
+
+	// getEntry on a full cache, keys picked uniformly so every lookup hits
+	private static Bench.Op lookup(File[] dir, int entries, String policy, boolean journal) throws Exception {
+
+		long capacity = entries * ENTRY_SIZE;
+		Cache cache = newCache(dir, capacity, policy, journal);
+		String[] names = names(entries, "dir");
+		for (String name : names) {
+			cache.putEntry(new CacheEntry(name, 1, ENTRY_SIZE, 0));
+		}
+
+		Bench.XorShift random = new Bench.XorShift(42);
+		return thread -> {
+			CacheEntry entry = cache.getEntry(names[random.nextInt(entries)], 1);
+			return (entry == null) ? 0 : entry.getVersion();
+		};
+	}
+
+	// putEntry of a file never seen before into a full cache, evicting one entry each time
+	private static Bench.Op insertEvict(File[] dir, int entries, String policy, boolean journal) throws Exception {
+
+		long capacity = entries * ENTRY_SIZE;
+		Cache cache = newCache(dir, capacity, policy, journal);
+		for (String name : names(entries, "old")) {
+			cache.putEntry(new CacheEntry(name, 1, ENTRY_SIZE, 0));
+		}
+
+		String[] names = names(entries * 4, "new");
+		int[] next = new int[1];
+		return thread -> {
+			String name = names[next[0]];
+			next[0] = (next[0] + 1) % names.length;
+			cache.putEntry(new CacheEntry(name, next[0], ENTRY_SIZE, 0));
+			return next[0];
+		};
+	}
+
+}
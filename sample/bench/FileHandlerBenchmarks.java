@@ -0,0 +1,139 @@
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.rmi.server.UnicastRemoteObject;
+
+/**
+ * FileHandler operations against an in-process Server: descriptor
+ * allocation under contention, and read, write and lseek throughput across
+ * buffer sizes. The Server is called directly, so these measure the proxy
+ * and not the network.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class FileHandlerBenchmarks {
+
+	private static final int[] THREADS = { 1, 4, 8 };
+	private static final int[] BUFFER_SIZES = { 512, 4096, 65536 };
+	private static final int FILE_SIZE = 4 * 1024 * 1024;
+	private static final int CACHE_SIZE = 256 * 1024 * 1024;
+
+	/**
+	 * A Server on a temp root and a Proxy on a temp cache directory.
+	 */
+	private static class Fixture {
+		final File root;
+		final File cache;
+		final Server server;
+		final FileHandlingMaking clients;
+
+		Fixture() throws Exception {
+			root = Bench.tempDir("bench-root");
+			cache = Bench.tempDir("bench-cache");
+			try (FileOutputStream fos = new FileOutputStream(new File(root, "small.txt"))) {
+				fos.write(new byte[1024]);
+			}
+			try (FileOutputStream fos = new FileOutputStream(new File(root, "large.dat"))) {
+				fos.write(new byte[FILE_SIZE]);
+			}
+			server = new Server(0, root.getPath());
+			ServerRing ring = new ServerRing(ServerRing.DEFAULT_VIRTUAL_NODES);
+			ring.addServer("local", server);
+			clients = Proxy.startInProcess(cache.getPath(), CACHE_SIZE, ring);
+		}
+
+		void close() throws Exception {
+			UnicastRemoteObject.unexportObject(server, true);
+			Bench.deleteTree(root);
+			Bench.deleteTree(cache);
+		}
+	}
+
+	public static void register(Bench bench) {
+
+		for (int threads : THREADS) {
+			Fixture[] fixture = new Fixture[1];
+			bench.add("fh.openClose", "file=small", threads,
+					() -> openClose(fixture, threads), () -> fixture[0].close());
+		}
+		for (int bufSize : BUFFER_SIZES) {
+			Fixture[] fixture = new Fixture[1];
+			bench.add("fh.read", "bufSize=" + bufSize, 1,
+					() -> read(fixture, bufSize), () -> fixture[0].close());
+		}
+		for (int bufSize : BUFFER_SIZES) {
+			Fixture[] fixture = new Fixture[1];
+			bench.add("fh.write", "bufSize=" + bufSize, 1,
+					() -> write(fixture, bufSize), () -> fixture[0].close());
+		}
+		Fixture[] fixture = new Fixture[1];
+		bench.add("fh.lseek", "-", 1, () -> lseek(fixture), () -> fixture[0].close());
+	}
+
+	private static long check(long result, String what) {
+		if (result < 0) {
+			throw new IllegalStateException(what + " failed with " + result);
+		}
+		return result;
+	}
+
+	// open and close of a cached file, every thread with its own client
+	private static Bench.Op openClose(Fixture[] fixture, int threads) throws Exception {
+
+		fixture[0] = new Fixture();
+		FileHandling[] clients = new FileHandling[threads];
+		for (int t = 0; t < threads; t++) {
+			clients[t] = fixture[0].clients.newclient();
+		}
+		return thread -> {
+			FileHandling client = clients[thread];
+			int fd = (int) check(client.open("small.txt", FileHandling.OpenOption.READ), "open");
+			return check(client.close(fd), "close") + fd;
+		};
+	}
+
+	// sequential reads of a large file, rewinding at the end
+	private static Bench.Op read(Fixture[] fixture, int bufSize) throws Exception {
+
+		fixture[0] = new Fixture();
+		FileHandling client = fixture[0].clients.newclient();
+		int fd = (int) check(client.open("large.dat", FileHandling.OpenOption.READ), "open");
+		byte[] buf = new byte[bufSize];
+		return thread -> {
+			long n = check(client.read(fd, buf), "read");
+			if (n == 0) {
+				check(client.lseek(fd, 0, FileHandling.LseekOption.FROM_START), "lseek");
+			}
+			return n;
+		};
+	}
+
+	// sequential writes to a private copy, rewinding every FILE_SIZE bytes
+	private static Bench.Op write(Fixture[] fixture, int bufSize) throws Exception {
+
+		fixture[0] = new Fixture();
+		FileHandling client = fixture[0].clients.newclient();
+		int fd = (int) check(client.open("large.dat", FileHandling.OpenOption.WRITE), "open");
+		byte[] buf = new byte[bufSize];
+		long[] pos = new long[1];
+		return thread -> {
+			long n = check(client.write(fd, buf), "write");
+			pos[0] += n;
+			if (pos[0] >= FILE_SIZE) {
+				pos[0] = check(client.lseek(fd, 0, FileHandling.LseekOption.FROM_START), "lseek");
+			}
+			return n;
+		};
+	}
+
+	private static Bench.Op lseek(Fixture[] fixture) throws Exception {
+
+		fixture[0] = new Fixture();
+		FileHandling client = fixture[0].clients.newclient();
+		int fd = (int) check(client.open("large.dat", FileHandling.OpenOption.READ), "open");
+		Bench.XorShift random = new Bench.XorShift(7);
+		return thread -> check(client.lseek(fd, random.nextInt(FILE_SIZE), FileHandling.LseekOption.FROM_START), "lseek");
+	}
+
+}
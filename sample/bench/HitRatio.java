@@ -0,0 +1,56 @@
+import java.util.Random;
+
+/**
+ * Hit ratio of each cache policy on a mix of one-off scans and a hot set,
+ * run with "make hitratio".
+ *
+ * Each request is, with probability hitratio.scanRatio, a file never seen
+ * before and never seen again; otherwise a file from a hot set whose
+ * popularity falls off like |N(0, hitratio.hotSpread)|. Every file is
+ * hitratio.fileSize bytes and the cache holds hitratio.cacheFiles of them.
+ * A miss installs the file. The cache is index-only, so only the policy is
+ * measured.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class HitRatio {
+
+	private static final int REQUESTS = Integer.getInteger("hitratio.requests", 200000);
+	private static final double SCAN_RATIO = Double.parseDouble(System.getProperty("hitratio.scanRatio", "0.33"));
+	private static final double HOT_SPREAD = Double.parseDouble(System.getProperty("hitratio.hotSpread", "30"));
+	private static final long FILE_SIZE = Long.getLong("hitratio.fileSize", 1000);
+	private static final int CACHE_FILES = Integer.getInteger("hitratio.cacheFiles", 100);
+	private static final long SEED = Long.getLong("hitratio.seed", 1);
+
+	private static final String[] POLICIES = { CachePolicy.POLICY_LRU, CachePolicy.POLICY_TINYLFU };
+
+	public static void main(String[] args) {
+
+		long capacity = CACHE_FILES * FILE_SIZE;
+		System.out.printf("%d requests, %.0f%% scans, hot set spread %.0f, cache of %d files%n",
+				REQUESTS, SCAN_RATIO * 100, HOT_SPREAD, CACHE_FILES);
+		System.out.printf("%-10s %10s %10s %10s%n", "Policy", "Hits", "Misses", "HitRatio");
+
+		for (String policy : POLICIES) {
+			CachePolicy p = policy.equals(CachePolicy.POLICY_LRU) ? new LruPolicy() : new TinyLfuPolicy(capacity);
+			Cache cache = new Cache(capacity, p);
+			// the same request stream for every policy
+			Random random = new Random(SEED);
+			int scans = 0;
+			for (int i = 0; i < REQUESTS; i++) {
+				String fname = (random.nextDouble() < SCAN_RATIO)
+						? "scan/" + (scans++)
+						: "hot/" + (int) Math.abs(random.nextGaussian() * HOT_SPREAD);
+				if (cache.getEntry(fname, 1) == null) {
+					cache.putEntry(new CacheEntry(fname, 1, FILE_SIZE, 0));
+				}
+			}
+			CacheStats stats = cache.getStats();
+			long hits = stats.getHits();
+			long misses = stats.getMisses();
+			System.out.printf("%-10s %10d %10d %10.3f%n", policy, hits, misses, (double) hits / (hits + misses));
+		}
+	}
+
+}
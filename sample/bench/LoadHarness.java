@@ -0,0 +1,333 @@
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process load generator, run with "make load".
+ *
+ * Starts a Server on a temp root and a Proxy on a temp cache directory in
+ * this JVM, then replays a trace from LOAD_CLIENTS concurrent clients, each
+ * a thread with its own FileHandling from FileHandlingMaking.newclient().
+ * A trace is one session per line:
+ *   client read|write path bytes
+ * A read session opens path, reads it to the end and closes it; a write
+ * session creates or opens path, writes bytes and closes it, uploading the
+ * file. Every path read is first created on the root with its size.
+ *
+ * The trace is read from -Dload.trace, or generated: file popularity
+ * follows a Zipf distribution, sizes are log-uniform between load.minSize
+ * and load.maxSize, and load.writeRatio of the sessions are writes.
+ * -Dload.recordTrace saves the generated trace for later replays.
+ *
+ * The report gives throughput, session and per-call latency percentiles,
+ * the cache hit ratio and the bytes the Server served. A session that
+ * fails a call or throws counts as an error; the first exception thrown is
+ * printed, and its client carries on with its next session.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class LoadHarness {
+
+	private static final int CLIENTS = Integer.getInteger("load.clients", 1000);
+	private static final int SESSIONS_PER_CLIENT = Integer.getInteger("load.sessionsPerClient", 20);
+	private static final int FILES = Integer.getInteger("load.files", 2000);
+	private static final double ZIPF_EXPONENT = Double.parseDouble(System.getProperty("load.zipf", "0.99"));
+	private static final double WRITE_RATIO = Double.parseDouble(System.getProperty("load.writeRatio", "0.05"));
+	private static final int MIN_SIZE = Integer.getInteger("load.minSize", 1024);
+	private static final int MAX_SIZE = Integer.getInteger("load.maxSize", 256 * 1024);
+	private static final int CACHE_SIZE = Integer.getInteger("load.cacheSize", 32 * 1024 * 1024);
+	private static final long SEED = Long.getLong("load.seed", 15440);
+
+	private static final int CHUNK = 64 * 1024;
+
+	private static class Session {
+		final boolean write;
+		final String path;
+		final int bytes;
+
+		Session(boolean write, String path, int bytes) {
+			this.write = write;
+			this.path = path;
+			this.bytes = bytes;
+		}
+	}
+
+	private final LatencyHistogram readSessions = new LatencyHistogram();
+	private final LatencyHistogram writeSessions = new LatencyHistogram();
+	private final AtomicLong errors = new AtomicLong();
+	// sessions among the errors that threw instead of failing a call
+	private final AtomicLong crashes = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+
+		// only operations that are truly slow should reach the slow-op log
+		if (System.getProperty(Trace.SLOW_MS_PROPERTY) == null) {
+			System.setProperty(Trace.SLOW_MS_PROPERTY, "10000");
+		}
+
+		String traceFile = System.getProperty("load.trace");
+		List<List<Session>> trace = (traceFile != null) ? readTrace(traceFile) : generateTrace();
+		String recordFile = System.getProperty("load.recordTrace");
+		if (recordFile != null) {
+			writeTrace(trace, recordFile);
+		}
+
+		File root = Bench.tempDir("load-root");
+		File cache = Bench.tempDir("load-cache");
+		Server server = null;
+		try {
+			populate(root, trace);
+			server = new Server(0, root.getPath());
+			Metrics serverMetrics = new Metrics();
+			ServerRing ring = new ServerRing(ServerRing.DEFAULT_VIRTUAL_NODES);
+			ring.addServer("local", new InstrumentedServer(server, serverMetrics, "server"));
+			FileHandlingMaking clients = Proxy.startInProcess(cache.getPath(), CACHE_SIZE, ring);
+
+			new LoadHarness().run(trace, clients, serverMetrics);
+		} finally {
+			if (server != null) {
+				UnicastRemoteObject.unexportObject(server, true);
+			}
+			Bench.deleteTree(root);
+			Bench.deleteTree(cache);
+		}
+		System.exit(0);
+	}
+
+	/*
+	 * Traces
+	 */
+
+	private static List<List<Session>> generateTrace() {
+
+		// cumulative Zipf weights over file ranks
+		double[] cdf = new double[FILES];
+		double total = 0;
+		for (int i = 0; i < FILES; i++) {
+			total += 1.0 / Math.pow(i + 1, ZIPF_EXPONENT);
+			cdf[i] = total;
+		}
+
+		SplittableRandom random = new SplittableRandom(SEED);
+		int[] sizes = new int[FILES];
+		double logMin = Math.log(MIN_SIZE);
+		double logMax = Math.log(MAX_SIZE);
+		for (int i = 0; i < FILES; i++) {
+			sizes[i] = (int) Math.exp(logMin + random.nextDouble() * (logMax - logMin));
+		}
+
+		List<List<Session>> trace = new ArrayList<>();
+		for (int c = 0; c < CLIENTS; c++) {
+			List<Session> sessions = new ArrayList<>();
+			for (int s = 0; s < SESSIONS_PER_CLIENT; s++) {
+				int rank = Arrays.binarySearch(cdf, random.nextDouble() * total);
+				int file = (rank >= 0) ? rank : Math.min(-rank - 1, FILES - 1);
+				boolean write = random.nextDouble() < WRITE_RATIO;
+				sessions.add(new Session(write, String.format("d%02d/f%05d.dat", file % 64, file), sizes[file]));
+			}
+			trace.add(sessions);
+		}
+		return trace;
+	}
+
+	private static List<List<Session>> readTrace(String file) throws IOException {
+
+		// by client number, so clients replay in the order they were recorded
+		Map<Integer, List<Session>> byClient = new TreeMap<>();
+		try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] f = line.trim().split("\\s+");
+				if (f.length < 4 || f[0].startsWith("#")) {
+					continue;
+				}
+				if (!f[1].equals("read") && !f[1].equals("write")) {
+					throw new IOException("Unknown operation " + f[1] + " in trace line: " + line);
+				}
+				Session session = new Session(f[1].equals("write"), f[2], Integer.parseInt(f[3]));
+				byClient.computeIfAbsent(Integer.parseInt(f[0]), k -> new ArrayList<>()).add(session);
+			}
+		}
+		return new ArrayList<>(byClient.values());
+	}
+
+	private static void writeTrace(List<List<Session>> trace, String file) throws IOException {
+		try (PrintWriter out = new PrintWriter(file)) {
+			for (int c = 0; c < trace.size(); c++) {
+				for (Session s : trace.get(c)) {
+					out.println(c + " " + (s.write ? "write" : "read") + " " + s.path + " " + s.bytes);
+				}
+			}
+		}
+	}
+
+	// creates every file the trace reads, at the largest size it is read with
+	private static void populate(File root, List<List<Session>> trace) throws IOException {
+
+		Map<String, Integer> files = new HashMap<>();
+		for (List<Session> sessions : trace) {
+			for (Session s : sessions) {
+				if (!s.write) {
+					files.merge(s.path, s.bytes, Math::max);
+				}
+			}
+		}
+		byte[] chunk = new byte[CHUNK];
+		new SplittableRandom(SEED).nextBytes(chunk);
+		for (Map.Entry<String, Integer> e : files.entrySet()) {
+			File file = new File(root, e.getKey());
+			file.getParentFile().mkdirs();
+			try (FileOutputStream fos = new FileOutputStream(file)) {
+				for (int left = e.getValue(); left > 0; left -= CHUNK) {
+					fos.write(chunk, 0, Math.min(left, CHUNK));
+				}
+			}
+		}
+	}
+
+	/*
+	 * Replay
+	 */
+
+	private void run(List<List<Session>> trace, FileHandlingMaking clients, Metrics serverMetrics)
+			throws InterruptedException {
+
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (List<Session> sessions : trace) {
+			FileHandling client = clients.newclient();
+			// thousands of clients, so keep their stacks small
+			Thread t = new Thread(null, () -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				byte[] buf = new byte[CHUNK];
+				for (Session s : sessions) {
+					long begin = System.nanoTime();
+					boolean ok;
+					try {
+						ok = s.write ? write(client, s, buf) : read(client, s, buf);
+					} catch (Throwable e) {
+						// a session that blows up is an error, the client goes on with the next one
+						if (crashes.getAndIncrement() == 0) {
+							e.printStackTrace();
+						}
+						ok = false;
+					}
+					if (!ok) {
+						errors.incrementAndGet();
+					}
+					(s.write ? writeSessions : readSessions).record(System.nanoTime() - begin);
+				}
+				client.clientdone();
+			}, "load-client", 256 * 1024);
+			threads.add(t);
+		}
+
+		System.out.println("Replaying " + trace.stream().mapToInt(List::size).sum() + " sessions from "
+				+ trace.size() + " clients ...");
+		for (Thread t : threads) {
+			t.start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		for (Thread t : threads) {
+			t.join();
+		}
+		long elapsed = System.nanoTime() - begin;
+
+		report(elapsed, serverMetrics);
+	}
+
+	private boolean read(FileHandling client, Session s, byte[] buf) {
+		int fd = client.open(s.path, FileHandling.OpenOption.READ);
+		if (fd < 0) {
+			return false;
+		}
+		long n;
+		while ((n = client.read(fd, buf)) > 0) {
+			bytesRead.addAndGet(n);
+		}
+		return client.close(fd) >= 0 && n == 0;
+	}
+
+	private boolean write(FileHandling client, Session s, byte[] buf) {
+		int fd = client.open(s.path, FileHandling.OpenOption.CREATE);
+		if (fd < 0) {
+			return false;
+		}
+		for (int left = s.bytes; left > 0; left -= CHUNK) {
+			byte[] chunk = (left >= CHUNK) ? buf : Arrays.copyOf(buf, left);
+			long n = client.write(fd, chunk);
+			if (n < 0) {
+				client.close(fd);
+				return false;
+			}
+			bytesWritten.addAndGet(n);
+		}
+		return client.close(fd) >= 0;
+	}
+
+	/*
+	 * Report
+	 */
+
+	private void report(long elapsedNanos, Metrics serverMetrics) {
+
+		double seconds = elapsedNanos / 1e9;
+		long sessions = readSessions.getCount() + writeSessions.getCount();
+		Map<String, Number> proxy = Proxy.getMetrics().snapshot();
+		Map<String, Number> server = serverMetrics.snapshot();
+
+		System.out.printf("elapsed            %.2f s%n", seconds);
+		System.out.printf("throughput         %.1f sessions/s, %.2f MB/s read, %.2f MB/s written%n",
+				sessions / seconds, bytesRead.get() / seconds / 1e6, bytesWritten.get() / seconds / 1e6);
+		System.out.printf("errors             %d (%d threw)%n", errors.get(), crashes.get());
+		printLatency("read session", readSessions);
+		printLatency("write session", writeSessions);
+		for (String op : new String[] { "open", "read", "write", "close" }) {
+			String name = "fh." + op;
+			if (proxy.containsKey(name + ".count")) {
+				System.out.printf("%-18s count=%d p50=%dus p99=%dus p999=%dus max=%dus%n", name,
+						proxy.get(name + ".count"), proxy.get(name + ".p50Micros"), proxy.get(name + ".p99Micros"),
+						proxy.get(name + ".p999Micros"), proxy.get(name + ".maxMicros"));
+			}
+		}
+		long hits = proxy.get("cache.hits").longValue();
+		long misses = proxy.get("cache.misses").longValue();
+		System.out.printf("cache              hitRatio=%.4f hits=%d misses=%d evictions=%s%n",
+				(hits + misses == 0) ? 0.0 : (double) hits / (hits + misses), hits, misses, proxy.get("cache.evictions"));
+		System.out.printf("server             bytesServed=%s bytesReceived=%s transfers=%s%n",
+				server.getOrDefault("server.bytesDownloaded", 0), server.getOrDefault("server.bytesUploaded", 0),
+				server.getOrDefault("server.transferFileToProxy.count", 0));
+	}
+
+	private static void printLatency(String name, LatencyHistogram h) {
+		if (h.getCount() == 0) {
+			return;
+		}
+		System.out.printf("%-18s count=%d p50=%dus p90=%dus p99=%dus p999=%dus max=%dus%n", name, h.getCount(),
+				h.getValueAtPercentile(0.50) / 1000, h.getValueAtPercentile(0.90) / 1000,
+				h.getValueAtPercentile(0.99) / 1000, h.getValueAtPercentile(0.999) / 1000, h.getMax() / 1000);
+	}
+
+}
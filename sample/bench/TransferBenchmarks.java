@@ -0,0 +1,72 @@
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Cost of moving one file through the binary transport, end to end but
+ * without the network: read from disk, encode, frame, parse and decode.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class TransferBenchmarks {
+
+	private static final int[] FILE_SIZES = { 1024, 64 * 1024, 1024 * 1024 };
+
+	// discards what it is given, like the socket at the far end
+	private static final OutputStream NULL_OUT = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	public static void register(Bench bench) {
+
+		for (int size : FILE_SIZES) {
+			for (String content : new String[] { "text", "random" }) {
+				File[] dir = new File[1];
+				bench.add("transfer.roundTrip", "size=" + size + ",content=" + content, 1,
+						() -> roundTrip(dir, size, content.equals("random")), () -> Bench.deleteTree(dir[0]));
+			}
+		}
+	}
+
+	private static Bench.Op roundTrip(File[] dir, int size, boolean random) throws Exception {
+
+		dir[0] = Bench.tempDir("bench-transfer");
+		byte[] content = new byte[size];
+		if (random) {
+			new Random(42).nextBytes(content);
+		} else {
+			byte[] line = "2026-10-19 12:00:00 INFO proxy served open of a/b/c.txt in 120us\n".getBytes();
+			for (int i = 0; i < size; i++) {
+				content[i] = line[i % line.length];
+			}
+		}
+		try (FileOutputStream fos = new FileOutputStream(new File(dir[0], "f.dat"))) {
+			fos.write(content);
+		}
+
+		String root = dir[0].getPath();
+		return thread -> {
+			FileTransferInfo sent = new FileTransfer("f.dat", root, TransferCodec.ACCEPT_ALL);
+			BinaryProtocol.Encoder enc = new BinaryProtocol.Encoder(1, BinaryProtocol.STATUS_OK,
+					sent.getWireContent().length + 64);
+			BinaryProtocol.putFileTransfer(enc, sent);
+			ByteBuffer frame = enc.finish();
+			// skip [length][requestID][status] as the reader does
+			frame.position(4 + BinaryProtocol.HEADER_SIZE);
+			FileTransferInfo received = BinaryProtocol.getFileTransfer(frame);
+			received.writeContentTo(NULL_OUT);
+			return received.getFileSize();
+		};
+	}
+
+}
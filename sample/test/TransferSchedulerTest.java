@@ -0,0 +1,120 @@
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Checks of TransferScheduler's slot rules, run with "make test". Each case
+ * throws AssertionError on failure, and the run exits non-zero.
+ *
+ * @author YanningMao <yanningm@andrew.cmu.edu>
+ *
+ */
+public class TransferSchedulerTest {
+
+	private static final String SERVER = "s";
+	private static final long SMALL = 1024;
+	private static final long LARGE = 10 * SMALL;
+	private static final long WAIT_MS = 200;
+
+	private static final ExecutorService POOL = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "transfer-test");
+		t.setDaemon(true);
+		return t;
+	});
+
+	public static void main(String[] args) throws Exception {
+		unknownSizeTakesReservedSlot();
+		largeNeverTakesReservedSlot();
+		unknownSizeWaitsBehindKnownSizes();
+		System.out.println("TransferSchedulerTest passed");
+		System.exit(0);
+	}
+
+	// a first fetch has no size hint, it must not queue behind a bulk download
+	private static void unknownSizeTakesReservedSlot() throws Exception {
+
+		TransferScheduler scheduler = new TransferScheduler(2, 0, SMALL);
+		CountDownLatch done = new CountDownLatch(1);
+		Future<?> bulk = hold(scheduler, LARGE, done);
+
+		Future<Integer> first = POOL.submit(() -> scheduler.run(SERVER, TransferScheduler.Priority.FETCH, -1,
+				() -> scheduler.getActive(SERVER)));
+		check(finishesWithin(first), "unknown size ran next to the bulk download");
+		check(first.get() == 2, "unknown size took the reserved slot");
+
+		done.countDown();
+		bulk.get();
+	}
+
+	private static void largeNeverTakesReservedSlot() throws Exception {
+
+		TransferScheduler scheduler = new TransferScheduler(2, 0, SMALL);
+		CountDownLatch done = new CountDownLatch(1);
+		Future<?> bulk = hold(scheduler, LARGE, done);
+
+		Future<Integer> second = POOL.submit(() -> scheduler.run(SERVER, TransferScheduler.Priority.FETCH, LARGE,
+				() -> scheduler.getActive(SERVER)));
+		check(!finishesWithin(second), "large transfer waited for the bulk download");
+
+		done.countDown();
+		bulk.get();
+		check(second.get(WAIT_MS, TimeUnit.MILLISECONDS) == 1, "large transfer ran after the bulk download");
+	}
+
+	private static void unknownSizeWaitsBehindKnownSizes() throws Exception {
+
+		TransferScheduler scheduler = new TransferScheduler(1, 0, SMALL);
+		CountDownLatch done = new CountDownLatch(1);
+		Future<?> busy = hold(scheduler, SMALL, done);
+
+		StringBuffer order = new StringBuffer();
+		Future<?> unknown = POOL.submit(() -> scheduler.run(SERVER, TransferScheduler.Priority.FETCH, -1,
+				() -> order.append("unknown ")));
+		Thread.sleep(WAIT_MS / 4);
+		Future<?> known = POOL.submit(() -> scheduler.run(SERVER, TransferScheduler.Priority.FETCH, SMALL,
+				() -> order.append("known ")));
+		Thread.sleep(WAIT_MS / 4);
+
+		done.countDown();
+		busy.get();
+		unknown.get(WAIT_MS, TimeUnit.MILLISECONDS);
+		known.get(WAIT_MS, TimeUnit.MILLISECONDS);
+		check(order.toString().equals("known unknown "), "unknown size admitted after known size, got " + order);
+	}
+
+	// runs a FETCH of size bytes that keeps its slot until done is counted down
+	private static Future<?> hold(TransferScheduler scheduler, long size, CountDownLatch done) throws Exception {
+
+		CountDownLatch started = new CountDownLatch(1);
+		Future<?> f = POOL.submit(() -> scheduler.run(SERVER, TransferScheduler.Priority.FETCH, size, () -> {
+			started.countDown();
+			try {
+				return done.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}));
+		check(started.await(WAIT_MS, TimeUnit.MILLISECONDS), "first transfer admitted");
+		return f;
+	}
+
+	private static boolean finishesWithin(Future<?> f) throws Exception {
+		try {
+			f.get(WAIT_MS, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (TimeoutException e) {
+			return false;
+		}
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			throw new AssertionError("failed: " + what);
+		}
+	}
+
+}